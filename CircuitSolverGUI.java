@@ -3,10 +3,48 @@ import javax.swing.border.TitledBorder;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.StandardWatchEventKinds;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 
 /**
  * CircuitSolverGUI es el programa principal.
@@ -18,20 +56,20 @@ import java.util.regex.Pattern;
  */
 public class CircuitSolverGUI extends JFrame {
 
-    // Colecciones del circuito: nodos y elementos
-    private Object lastAddedItem = null;
-    private ArrayList<Node> nodes;
-    private ArrayList<CircuitElement> elements;
+    // Circuito actual (inmutable) e historial de ediciones para deshacer y rehacer
+    private final EditHistory history = new EditHistory();
     // Panel de dibujo del circuito
     private CircuitPanel circuitPanel;
     // Área de texto donde se muestran resultados o mensajes
     private JTextArea outputArea;
+    // Vigilancia del archivo del circuito (null si no está activa) y su resolución incremental, que se
+    // reemplaza en el hilo de eventos y se usa en el hilo de recarga
+    private NetlistWatcher watcher = null;
+    private volatile IncrementalSolver incrementalSolver = new IncrementalSolver();
 
     // Constructor: se arma la interfaz y se inicializan las colecciones.
     public CircuitSolverGUI() {
         super("Analizador de Circuitos con Eliminación Gaussiana");
-        nodes = new ArrayList<>();
-        elements = new ArrayList<>();
         initializeGUI();
     }
 
@@ -86,7 +124,7 @@ public class CircuitSolverGUI extends JFrame {
         gbc.gridy++;
         JPanel elementPanel = new JPanel(new GridLayout(0,2,5,5));
         // Tipo del elemento: R, V, I
-        elementPanel.add(new JLabel("Tipo (R/V/I):"));
+        elementPanel.add(new JLabel("Tipo (R/V/I/CAP/L/D):"));
         JTextField typeField = new JTextField(1);
         elementPanel.add(typeField);
         // Nodo positivo (o de entrada)
@@ -125,8 +163,30 @@ public class CircuitSolverGUI extends JFrame {
         JButton clearButton = new JButton("Limpiar Circuito");
         manualPanel.add(clearButton, gbc);
         gbc.gridy++;
-        JButton undoButton = new JButton("Deshacer Último");
-        manualPanel.add(undoButton, gbc);
+        JPanel historyPanel = new JPanel(new GridLayout(1,2,5,5));
+        JButton undoButton = new JButton("Deshacer");
+        JButton redoButton = new JButton("Rehacer");
+        historyPanel.add(undoButton);
+        historyPanel.add(redoButton);
+        manualPanel.add(historyPanel, gbc);
+        gbc.gridy++;
+        JButton watchButton = new JButton("Vigilar Archivo");
+        manualPanel.add(watchButton, gbc);
+        // Sensibilidad de una salida respecto de cada resistor y fuente
+        gbc.gridy++;
+        JPanel sensPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        JTextField sensOutputField = new JTextField(5);
+        sensOutputField.setToolTipText("Nodo (p.ej. 3) para su tensión, o n1-n2 para la corriente del resistor o fuente de voltaje entre esos nodos");
+        JButton sensButton = new JButton("Sensibilidad");
+        sensPanel.add(new JLabel("Salida:")); sensPanel.add(sensOutputField);
+        sensPanel.add(sensButton);
+        manualPanel.add(sensPanel, gbc);
+        gbc.gridy++;
+        JButton transientButton = new JButton("Análisis Transitorio");
+        manualPanel.add(transientButton, gbc);
+        gbc.gridy++;
+        JButton acButton = new JButton("Análisis AC");
+        manualPanel.add(acButton, gbc);
         JPanel resultsPanel = new JPanel(new BorderLayout());
         resultsPanel.setBorder(new TitledBorder("Resultados"));
         outputArea = new JTextArea(15,30);
@@ -152,15 +212,11 @@ public class CircuitSolverGUI extends JFrame {
                     int x = Integer.parseInt(posXField.getText().trim());
                     int y = Integer.parseInt(posYField.getText().trim());
                     // Verificar si ya existe un nodo con el mismo id
-                    for(Node n : nodes){
-                        if(n.id == id) {
-                            JOptionPane.showMessageDialog(null, "El nodo con id " + id + " ya existe.");
-                            return;
-                        }
+                    if(findNodeById(id) != null) {
+                        JOptionPane.showMessageDialog(null, "El nodo con id " + id + " ya existe.");
+                        return;
                     }
-                    Node newNode = new Node(id, x, y);
-                    nodes.add(newNode);
-                    lastAddedItem = newNode; // Guardar referencia del último nodo agregado
+                    history.apply(history.current().withNode(new Node(id, x, y)), "agregar nodo " + id);
                     circuitPanel.repaint();
                     outputArea.append("Nodo " + id + " agregado en (" + x + "," + y + ")\n");
                 } catch(NumberFormatException ex){
@@ -169,50 +225,31 @@ public class CircuitSolverGUI extends JFrame {
             }
         });
 
-        // Acción para deshacer último paso
+        // Acciones para deshacer y rehacer: se vuelve a un circuito anterior (o posterior) del historial
         undoButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                if (lastAddedItem == null) {
+                String description = history.undo();
+                if (description == null) {
                     JOptionPane.showMessageDialog(null, "No hay nada que deshacer.");
                     return;
                 }
-                
-                if (lastAddedItem instanceof Node) {
-                    Node nodeToRemove = (Node) lastAddedItem;
-                    // Verificar si hay elementos conectados a este nodo
-                    boolean hasConnectedElements = false;
-                    for (CircuitElement elem : elements) {
-                        if (elem.node1.id == nodeToRemove.id || elem.node2.id == nodeToRemove.id) {
-                            hasConnectedElements = true;
-                            break;
-                        }
-                    }
-                    
-                    if (hasConnectedElements) {
-                        JOptionPane.showMessageDialog(null, 
-                            "No se puede eliminar el nodo " + nodeToRemove.id + 
-                            " porque tiene elementos conectados.");
-                        return;
-                    }
-                    
-                    nodes.remove(nodeToRemove);
-                    outputArea.append("Nodo " + nodeToRemove.id + " eliminado.\n");
-                    
-                } else if (lastAddedItem instanceof CircuitElement) {
-                    CircuitElement elemToRemove = (CircuitElement) lastAddedItem;
-                    elements.remove(elemToRemove);
-                    String tipo = "";
-                    if (elemToRemove instanceof Resistor) tipo = "Resistor";
-                    else if (elemToRemove instanceof VoltageSource) tipo = "Fuente de voltaje";
-                    else if (elemToRemove instanceof CurrentSource) tipo = "Fuente de corriente";
-                    else if (elemToRemove instanceof Cable) tipo = "Cable";
-                    
-                    outputArea.append(tipo + " entre N" + elemToRemove.node1.id + 
-                                    " y N" + elemToRemove.node2.id + " eliminado.\n");
+                // La resolución incremental corresponde al circuito que se acaba de dejar
+                incrementalSolver = new IncrementalSolver();
+                outputArea.append("Deshecho: " + description + "\n");
+                circuitPanel.repaint();
+            }
+        });
+        redoButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String description = history.redo();
+                if (description == null) {
+                    JOptionPane.showMessageDialog(null, "No hay nada que rehacer.");
+                    return;
                 }
-                
-                lastAddedItem = null;
+                incrementalSolver = new IncrementalSolver();
+                outputArea.append("Rehecho: " + description + "\n");
                 circuitPanel.repaint();
             }
         });
@@ -241,12 +278,18 @@ public class CircuitSolverGUI extends JFrame {
                         elem = new VoltageSource(n1, n2, valor);
                     } else if(tipo.equals("I")){
                         elem = new CurrentSource(n1, n2, valor);
+                    } else if(tipo.equals("CAP")){
+                        elem = new Capacitor(n1, n2, valor);
+                    } else if(tipo.equals("L")){
+                        elem = new Inductor(n1, n2, valor);
+                    } else if(tipo.equals("D")){
+                        elem = new Diode(n1, n2, valor);
                     } else {
-                        JOptionPane.showMessageDialog(null, "Tipo de elemento inválido. Use R, V o I.");
+                        JOptionPane.showMessageDialog(null, "Tipo de elemento inválido. Use R, V, I, CAP, L o D.");
                         return;
                     }
-                   elements.add(elem);
-                    lastAddedItem = elem; // Guardar referencia del último elemento agregado
+                    history.apply(history.current().withElement(elem),
+                        "agregar " + tipo + " entre N" + node1Id + " y N" + node2Id);
                     circuitPanel.repaint();
                     outputArea.append("Elemento " + tipo + " agregado entre N" + node1Id + " y N" + node2Id + " con valor " + valor + "\n");
                 } catch(NumberFormatException ex){
@@ -263,58 +306,190 @@ public class CircuitSolverGUI extends JFrame {
                 int ret = chooser.showOpenDialog(CircuitSolverGUI.this);
                 if(ret == JFileChooser.APPROVE_OPTION) {
                     File file = chooser.getSelectedFile();
-                    lastAddedItem = null;
                     loadCircuitFromFile(file);
                 }
             }
         });
 
+        // Acción para vigilar un archivo: cada vez que se guarda se aplican sólo los cambios y se vuelve a resolver.
+        watchButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if(watcher != null) {
+                    try {
+                        watcher.close();
+                    } catch(IOException ex) {
+                        outputArea.append("Error al detener la vigilancia: " + ex.getMessage() + "\n");
+                    }
+                    watcher = null;
+                    watchButton.setText("Vigilar Archivo");
+                    outputArea.append("Vigilancia detenida.\n");
+                    return;
+                }
+                JFileChooser chooser = new JFileChooser(".");
+                int ret = chooser.showOpenDialog(CircuitSolverGUI.this);
+                if(ret != JFileChooser.APPROVE_OPTION) return;
+                File file = chooser.getSelectedFile();
+                try {
+                    // Último circuito aplicado desde el archivo: las recargas se calculan sobre él en el
+                    // hilo de recarga, sin leer el historial fuera del hilo de eventos.
+                    AtomicReference<Circuit> watched = new AtomicReference<>(history.current());
+                    watcher = new NetlistWatcher(file, WATCH_DEBOUNCE_MS, () -> reloadWatchedFile(file, watched));
+                    watcher.reloadNow();
+                    watchButton.setText("Detener Vigilancia");
+                    outputArea.append("Vigilando " + file.getName() + "\n");
+                } catch(Exception ex) {
+                    JOptionPane.showMessageDialog(null, "Error al leer el archivo: " + ex.getMessage());
+                }
+            }
+        });
+
         // Acción para resolver el circuito
         solveButton.addActionListener(new ActionListener() {
     @Override
     public void actionPerformed(ActionEvent e) {
-        if(nodes.isEmpty()) {
+        // Instantánea del circuito: es inmutable, así que no hace falta copiarla para resolver
+        Circuit circuit = history.current();
+        if(circuit.nodes().isEmpty()) {
             JOptionPane.showMessageDialog(null, "No hay nodos ingresados.");
             return;
         }
-        if(findNodeById(0)==null) {
+        if(circuit.findNode(0)==null) {
             JOptionPane.showMessageDialog(null, "Debe existir un nodo con ID 0 (tierra).");
             return;
         }
-        // --- COPIA PROFUNDA DE NODOS Y ELEMENTOS ---
-        ArrayList<Node> nodesCopy = new ArrayList<>();
-        HashMap<Integer, Node> idToNodeCopy = new HashMap<>();
-        for(Node n : nodes) {
-            Node nc = new Node(n.id, n.x, n.y);
-            nodesCopy.add(nc);
-            idToNodeCopy.put(n.id, nc);
-        }
-        ArrayList<CircuitElement> elementsCopy = new ArrayList<>();
-        for(CircuitElement ce : elements) {
-            Node n1 = idToNodeCopy.get(ce.node1.id);
-            Node n2 = idToNodeCopy.get(ce.node2.id);
-            if(ce instanceof Resistor)
-                elementsCopy.add(new Resistor(n1, n2, ((Resistor)ce).resistance));
-            else if(ce instanceof VoltageSource)
-                elementsCopy.add(new VoltageSource(n1, n2, ((VoltageSource)ce).voltage));
-            else if(ce instanceof CurrentSource)
-                elementsCopy.add(new CurrentSource(n1, n2, ((CurrentSource)ce).current));
-            else if(ce instanceof Cable)
-                elementsCopy.add(new Cable(n1, n2));
-        }
-        // --- FUSIONA SOLO EN LA COPIA ---
-        mergeCableConnectedNodes(nodesCopy, elementsCopy);
-
-        CircuitSolver solver = new CircuitSolver(nodesCopy, elementsCopy);
-        try {
-            solver.solveCircuit();
-            displayResults(solver, nodesCopy, elementsCopy);
-        } catch(Exception ex){
-            outputArea.append("Error al resolver el circuito: " + ex.getMessage() + "\n");
-        }
+        // Se resuelve en un hilo aparte (la factorización de un circuito grande no debe trabar la
+        // interfaz) y sólo el informe vuelve al hilo de eventos.
+        new Thread(() -> {
+            String msg;
+            CircuitSolver solver = new CircuitSolver(circuit.nodes(), circuit.elements());
+            try {
+                solver.solveCircuit();
+                msg = formatResults(solver, circuit.nodes(), circuit.elements());
+            } catch(Exception ex){
+                msg = "Error al resolver el circuito: " + ex.getMessage() + "\n";
+            }
+            String text = msg;
+            SwingUtilities.invokeLater(() -> outputArea.append(text));
+        }, "resolucion").start();
     }
 });
 
+        // Acción para calcular la sensibilidad de la salida indicada (método adjunto)
+        sensButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Circuit circuit = history.current();
+                if(circuit.findNode(0)==null) {
+                    JOptionPane.showMessageDialog(null, "Debe existir un nodo con ID 0 (tierra).");
+                    return;
+                }
+                String output = sensOutputField.getText().trim();
+                // La resolución y las resoluciones adjuntas van en un hilo aparte, como la de solveButton
+                new Thread(() -> {
+                    String msg;
+                    CircuitSolver solver = new CircuitSolver(circuit.nodes(), circuit.elements());
+                    try {
+                        solver.solveCircuit();
+                        msg = formatSensitivities(solver, output, circuit.nodes(), circuit.elements());
+                    } catch(Exception ex){
+                        msg = "Error en el análisis de sensibilidad: " + ex.getMessage() + "\n";
+                    }
+                    String text = msg;
+                    SwingUtilities.invokeLater(() -> outputArea.append(text));
+                }, "sensibilidad").start();
+            }
+        });
+
+        // Acción para el análisis transitorio: se pide paso, número de pasos y método, y las formas
+        // de onda se escriben en un CSV desde un hilo aparte.
+        transientButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Circuit circuit = history.current();
+                if(circuit.findNode(0)==null) {
+                    JOptionPane.showMessageDialog(null, "Debe existir un nodo con ID 0 (tierra).");
+                    return;
+                }
+                String input = JOptionPane.showInputDialog(CircuitSolverGUI.this,
+                    "Paso, número de pasos y método (BE o TRAP), p.ej.: 1u 100000 TRAP", "1u 1000 BE");
+                if(input == null) return;
+                String[] parts = input.trim().split("\\s+");
+                double step;
+                long steps;
+                try {
+                    step = parseValue(parts[0]);
+                    steps = Long.parseLong(parts[1]);
+                } catch(RuntimeException ex) {
+                    JOptionPane.showMessageDialog(null, "Error en la entrada de datos para el transitorio.");
+                    return;
+                }
+                boolean trapezoidal = parts.length > 2 && parts[2].equalsIgnoreCase("TRAP");
+                JFileChooser chooser = new JFileChooser(".");
+                chooser.setSelectedFile(new File("transitorio.csv"));
+                if(chooser.showSaveDialog(CircuitSolverGUI.this) != JFileChooser.APPROVE_OPTION) return;
+                File csv = chooser.getSelectedFile();
+                outputArea.append("Transitorio: " + steps + " pasos de " + step + " s hacia " + csv.getName() + "...\n");
+                new Thread(() -> {
+                    String msg;
+                    long start = System.nanoTime();
+                    try (Writer out = new BufferedWriter(new FileWriter(csv))) {
+                        runTransient(circuit.nodes(), circuit.elements(), step, steps, trapezoidal, 1, out);
+                        msg = String.format("Transitorio terminado en %.2f s.%n", (System.nanoTime() - start) / 1e9);
+                    } catch(Exception ex) {
+                        msg = "Error en el análisis transitorio: " + ex.getMessage() + "\n";
+                    }
+                    String text = msg;
+                    SwingUtilities.invokeLater(() -> outputArea.append(text));
+                }, "transitorio").start();
+            }
+        });
+
+        // Acción para el barrido de frecuencia: se piden las frecuencias y la cantidad de puntos, y el
+        // CSV se escribe desde un hilo aparte (que reparte las frecuencias entre los procesadores).
+        acButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Circuit circuit = history.current();
+                if(circuit.findNode(0)==null) {
+                    JOptionPane.showMessageDialog(null, "Debe existir un nodo con ID 0 (tierra).");
+                    return;
+                }
+                String input = JOptionPane.showInputDialog(CircuitSolverGUI.this,
+                    "Frecuencia inicial, final y cantidad de puntos (escala logarítmica), p.ej.: 10 1M 1000", "10 1M 1000");
+                if(input == null) return;
+                String[] parts = input.trim().split("\\s+");
+                double fStart, fStop;
+                int points;
+                try {
+                    fStart = parseValue(parts[0]);
+                    fStop = parseValue(parts[1]);
+                    points = Integer.parseInt(parts[2]);
+                } catch(RuntimeException ex) {
+                    JOptionPane.showMessageDialog(null, "Error en la entrada de datos para el análisis AC.");
+                    return;
+                }
+                JFileChooser chooser = new JFileChooser(".");
+                chooser.setSelectedFile(new File("ac.csv"));
+                if(chooser.showSaveDialog(CircuitSolverGUI.this) != JFileChooser.APPROVE_OPTION) return;
+                File csv = chooser.getSelectedFile();
+                int threads = Runtime.getRuntime().availableProcessors();
+                outputArea.append("Barrido AC: " + points + " frecuencias hacia " + csv.getName() + "...\n");
+                new Thread(() -> {
+                    String msg;
+                    long start = System.nanoTime();
+                    try (Writer out = new BufferedWriter(new FileWriter(csv))) {
+                        String note = runAcSweep(circuit.nodes(), circuit.elements(), fStart, fStop, points, threads, out);
+                        msg = String.format("Barrido AC terminado en %.2f s.%n", (System.nanoTime() - start) / 1e9) + note;
+                    } catch(Exception ex) {
+                        msg = "Error en el análisis AC: " + ex.getMessage() + "\n";
+                    }
+                    String text = msg;
+                    SwingUtilities.invokeLater(() -> outputArea.append(text));
+                }, "analisis-ac").start();
+            }
+        });
+
         // Acción para limpiar el circuito
     clearButton.addActionListener(new ActionListener() {
         @Override
@@ -326,8 +501,7 @@ public class CircuitSolverGUI extends JFrame {
             JOptionPane.YES_NO_OPTION
         );
         if (confirm == JOptionPane.YES_OPTION) {
-            nodes.clear();
-            elements.clear();
+            history.apply(Circuit.EMPTY, "limpiar circuito");
             outputArea.setText("");
             circuitPanel.repaint();
             outputArea.append("Circuito limpiado.\n");
@@ -338,10 +512,7 @@ public class CircuitSolverGUI extends JFrame {
 
     // Método para encontrar un nodo dado su id.
     private Node findNodeById(int id) {
-        for(Node n : nodes) {
-            if(n.id == id) return n;
-        }
-        return null;
+        return history.current().findNode(id);
     }
     
     /**
@@ -356,31 +527,87 @@ public class CircuitSolverGUI extends JFrame {
      * NODO 1 200 300
      * ELEMENTO R 0 1 4.7k
      * ELEMENTO V 1 0 5
+     *
+     * Tipos: R (resistor), V (fuente de voltaje), I (fuente de corriente), C (cable),
+     * CAP (capacitor), L (inductor) y D (diodo de ánodo node1 y cátodo node2; el valor es
+     * la corriente de saturación, p.ej. 10f o 1e-14).
      */
     private void loadCircuitFromFile(File file) {
-    try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-        String line;
-        nodes.clear();
-        elements.clear();
-        while((line = br.readLine()) != null) {
+    try {
+        Netlist netlist = parseNetlist(file, outputArea::append);
+        history.apply(Circuit.of(netlist.nodes, netlist.elements), "cargar " + file.getName());
+        circuitPanel.repaint();
+    } catch(Exception ex) {
+        JOptionPane.showMessageDialog(null, "Error al leer el archivo: " + ex.getMessage());
+    }
+}
+
+    // Aplica la nueva versión del archivo vigilado sobre el último circuito vigilado y resuelve, en el
+    // hilo de recarga; al hilo de eventos sólo vuelven el circuito, que queda en el historial como una
+    // sola edición, y el informe.
+    private void reloadWatchedFile(File file, AtomicReference<Circuit> watched) {
+        Reload reload;
+        try {
+            reload = applyNetlistChange(parseNetlist(file, null), watched.get(), incrementalSolver);
+        } catch(Exception ex) {
+            SwingUtilities.invokeLater(() -> outputArea.append("Error al leer el archivo: " + ex.getMessage() + "\n"));
+            return;
+        }
+        if(reload == null) return;
+        watched.set(reload.circuit);
+        SwingUtilities.invokeLater(() -> {
+            history.apply(reload.circuit, "cambios de " + file.getName());
+            circuitPanel.repaint();
+            outputArea.append(reload.report);
+        });
+    }
+
+    // Circuito leído de un archivo (nodos y elementos en el orden del archivo).
+    static class Netlist {
+        final ArrayList<Node> nodes = new ArrayList<>();
+        final ArrayList<CircuitElement> elements = new ArrayList<>();
+        // Número de línea ELEMENTO (desde 1) de cada elemento cargado: las líneas con error no se cargan
+        // pero cuentan, así el número sigue siendo la posición en el archivo.
+        final ArrayList<Integer> elementOrdinals = new ArrayList<>();
+    }
+
+    // Lee un archivo con el formato NODO/ELEMENTO. Si log no es null, se le informa cada línea agregada.
+    static Netlist parseNetlist(File file, Consumer<String> log) throws IOException {
+        try (Reader reader = new FileReader(file)) {
+            return parseNetlist(reader, log);
+        }
+    }
+
+    static Netlist parseNetlist(Reader reader, Consumer<String> log) throws IOException {
+        Netlist netlist = new Netlist();
+        HashMap<Integer, Node> idToNode = new HashMap<>();
+        int ordinal = 0;
+        int lineNumber = 0;
+        try (BufferedReader br = new BufferedReader(reader)) {
+            String line;
+            while((line = br.readLine()) != null) {
+                lineNumber++;
                 line = line.trim();
                 if(line.isEmpty()) continue;
                 String[] parts = line.split("\\s+");
+                if(parts[0].equalsIgnoreCase("ELEMENTO")) ordinal++;
                 if(parts[0].equalsIgnoreCase("NODO") && parts.length>=4) {
                     int id = Integer.parseInt(parts[1]);
                     int x = Integer.parseInt(parts[2]);
                     int y = Integer.parseInt(parts[3]);
-                    nodes.add(new Node(id, x, y));
-                    outputArea.append("Nodo " + id + " agregado desde archivo.\n");
+                    Node node = new Node(id, x, y);
+                    netlist.nodes.add(node);
+                    idToNode.putIfAbsent(id, node);
+                    if(log != null) log.accept("Nodo " + id + " agregado desde archivo.\n");
                 } else if(parts[0].equalsIgnoreCase("ELEMENTO") && parts.length>=5) {
                     String tipo = parts[1].toUpperCase();
                     int node1 = Integer.parseInt(parts[2]);
                     int node2 = Integer.parseInt(parts[3]);
                     double valor = parseValue(parts[4]);
-                    Node n1 = findNodeById(node1);
-                    Node n2 = findNodeById(node2);
+                    Node n1 = idToNode.get(node1);
+                    Node n2 = idToNode.get(node2);
                     if(n1==null || n2==null) {
-                        outputArea.append("Error: nodo referenciado en elemento no existe.\n");
+                        if(log != null) log.accept("Error: nodo referenciado en elemento no existe.\n");
                         continue;
                     }
                     CircuitElement elem = null;
@@ -392,99 +619,188 @@ public class CircuitSolverGUI extends JFrame {
                         elem = new CurrentSource(n1, n2, valor);
                     } else if(tipo.equals("C")) {
                         elem = new Cable(n1, n2);
+                    } else if(tipo.equals("CAP")) {
+                        elem = new Capacitor(n1, n2, valor);
+                    } else if(tipo.equals("L")) {
+                        elem = new Inductor(n1, n2, valor);
+                    } else if(tipo.equals("D")) {
+                        elem = new Diode(n1, n2, valor);
                     }
                     if(elem!=null) {
-                        elements.add(elem);
-                        outputArea.append("Elemento " + tipo + " agregado desde archivo.\n");
+                        netlist.elements.add(elem);
+                        netlist.elementOrdinals.add(ordinal);
+                        if(log != null) log.accept("Elemento " + tipo + " agregado desde archivo.\n");
                     }
                 }
             }
-            
-        circuitPanel.repaint();
-    } catch(Exception ex) {
-        JOptionPane.showMessageDialog(null, "Error al leer el archivo: " + ex.getMessage());
+        } catch(NumberFormatException ex) {
+            throw new IOException("Línea " + lineNumber + ": " + ex.getMessage(), ex);
+        }
+        return netlist;
     }
-}
 
     // Método auxiliar para convertir un string con prefijos a valor double.
-    // Ejemplo: "4.7k" -> 4700, "2.2M" -> 2200000, "10" -> 10.
-    private double parseValue(String s) throws NumberFormatException {
+    // Ejemplo: "4.7k" -> 4700, "2.2M" -> 2200000, "1G" -> 1e9, "10" -> 10.
+    private static double parseValue(String s) throws NumberFormatException {
         s = s.trim();
-        Pattern p = Pattern.compile("([0-9.]+)\\s*([kKmMuU]?)([ohmVAI]?)");
+        Pattern p = Pattern.compile("([0-9.]+(?:[eE][-+]?[0-9]+)?)\\s*([kKmMGuUnpf]?)([ohmVAIFH]?)");
         Matcher m = p.matcher(s);
         if(m.matches()){
             double value = Double.parseDouble(m.group(1));
             String prefix = m.group(2);
+            // "m" es mili y "M" es mega, por eso se distingue entre mayúsculas y minúsculas
             if(prefix.equalsIgnoreCase("k"))
                 value *= 1e3;
-            else if(prefix.equalsIgnoreCase("m"))
+            else if(prefix.equals("m"))
                 value *= 1e-3;
             else if(prefix.equalsIgnoreCase("u"))
                 value *= 1e-6;
-            else if(prefix.equalsIgnoreCase("M"))
+            else if(prefix.equals("n"))
+                value *= 1e-9;
+            else if(prefix.equals("p"))
+                value *= 1e-12;
+            else if(prefix.equals("f"))
+                value *= 1e-15;
+            else if(prefix.equals("M"))
                 value *= 1e6;
+            else if(prefix.equals("G"))
+                value *= 1e9;
             return value;
         } else {
             throw new NumberFormatException("Formato inválido en valor: " + s);
         }
     }
 
-    // Muestra en el área de salida los resultados (voltajes en nodos, corrientes en elementos y la matriz aumentada)
-    private void displayResults(CircuitSolver solver, ArrayList<Node> analysisNodes, ArrayList<CircuitElement> analysisElements) {
+    // Arma el texto de resultados para los nodos y elementos originales (antes de fusionar cables).
+    static String formatResults(CircuitSolver solver, List<Node> nodes, List<CircuitElement> elements) {
+        return formatResults(solver, nodes, elements, true);
+    }
+
+    static String formatResults(CircuitSolver solver, List<Node> nodes, List<CircuitElement> elements, boolean includeMatrix) {
         DecimalFormat df = new DecimalFormat("#.####");
-        outputArea.append("\n--- Matriz aumentada del sistema ---\n");
-        outputArea.append(solver.getAugmentedMatrixString() + "\n");
-    
-        outputArea.append("\n--- Resultados ---\n");
+        StringBuilder sb = new StringBuilder();
+        if(includeMatrix) {
+            sb.append("\n--- Matriz aumentada del sistema ---\n");
+            sb.append(solver.getAugmentedMatrixString()).append("\n");
+        }
+
+        sb.append("\n--- Resultados ---\n");
         HashMap<Integer,Double> nodeVoltages = solver.getNodeVoltages();
+        HashMap<Integer,Integer> repIds = representativeIds(nodes, elements);
         for(Node n : nodes) {
-        int repId = findRepresentativeId(n.id, analysisNodes, analysisElements);
-        Double v = nodeVoltages.get(repId);
-        if (v == null) {
-        outputArea.append("Nodo " + n.id + " -> V = N/A\n");
-        } else {
-        outputArea.append("Nodo " + n.id + " -> V = " + df.format(v) + " V\n");
-    }
-}
+            Double v = nodeVoltages.get(repIds.get(n.id));
+            if (v == null) {
+                sb.append("Nodo ").append(n.id).append(" -> V = N/A\n");
+            } else {
+                sb.append("Nodo ").append(n.id).append(" -> V = ").append(df.format(v)).append(" V\n");
+            }
+        }
 
-        outputArea.append("\nCorrientes por elemento:\n");
+        sb.append("\nCorrientes por elemento:\n");
         for(CircuitElement elem : elements) {
-        if(elem instanceof Resistor) {
-            int repId1 = findRepresentativeId(elem.node1.id, analysisNodes, analysisElements);
-            int repId2 = findRepresentativeId(elem.node2.id, analysisNodes, analysisElements);
-            double v1 = (repId1 == 0 ? 0 : nodeVoltages.get(repId1));
-            double v2 = (repId2 == 0 ? 0 : nodeVoltages.get(repId2));
-            double diff = v1 - v2;
-            double current = diff/((Resistor)elem).resistance;
-            outputArea.append("Resistor entre N" + elem.node1.id + " y N" + elem.node2.id +
-                    ": I = " + df.format(current) + " A, Vdrop = " + df.format(diff) + " V");
-            if(Math.abs(diff) < 1e-6) {
-                outputArea.append("  --> En corto");
-            }
-            outputArea.append("\n");
-        }
-        // Se pueden agregar cálculos para fuentes si se desea.
+            if(elem instanceof Resistor) {
+                Double v1 = nodeVoltages.get(repIds.get(elem.node1.id));
+                Double v2 = nodeVoltages.get(repIds.get(elem.node2.id));
+                sb.append("Resistor entre N").append(elem.node1.id).append(" y N").append(elem.node2.id);
+                if(v1 == null || v2 == null) {
+                    sb.append(": I = N/A\n");
+                    continue;
+                }
+                double diff = v1 - v2;
+                double current = diff/((Resistor)elem).resistance;
+                sb.append(": I = ").append(df.format(current)).append(" A, Vdrop = ").append(df.format(diff)).append(" V");
+                if(Math.abs(diff) < 1e-6) {
+                    sb.append("  --> En corto");
+                }
+                sb.append("\n");
+            }
+            else if(elem instanceof NonlinearElement) {
+                Double v1 = nodeVoltages.get(repIds.get(elem.node1.id));
+                Double v2 = nodeVoltages.get(repIds.get(elem.node2.id));
+                if(v1 == null || v2 == null) continue;
+                double diff = v1 - v2;
+                sb.append(typeCode(elem)).append(" entre N").append(elem.node1.id).append(" y N").append(elem.node2.id)
+                  .append(": I = ").append(String.format("%.4e", ((NonlinearElement)elem).current(diff)))
+                  .append(" A, V = ").append(df.format(diff)).append(" V\n");
+            }
+            // Se pueden agregar cálculos para fuentes si se desea.
+        }
+        if(solver.getConvergenceReport() != null) {
+            sb.append("\n").append(solver.getConvergenceReport());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Calcula y arma el texto de las sensibilidades de una salida, ordenadas por su efecto relativo.
+     * La salida es un id de nodo (su tensión) o "n1-n2" (la corriente del primer resistor o fuente de
+     * voltaje entre esos nodos).
+     */
+    static String formatSensitivities(CircuitSolver solver, String output, List<Node> nodes, List<CircuitElement> elements)
+            throws Exception {
+        ArrayList<Sensitivity> sens;
+        String label;
+        String[] parts = output.split("-");
+        if(parts.length == 1) {
+            int id = Integer.parseInt(parts[0].trim());
+            Integer repId = representativeIds(nodes, elements).get(id);
+            if(repId == null) throw new Exception("El nodo " + id + " no existe.");
+            sens = solver.sensitivitiesOfNodeVoltage(repId);
+            label = "V(N" + id + ")";
+        } else if(parts.length == 2) {
+            int a = Integer.parseInt(parts[0].trim());
+            int b = Integer.parseInt(parts[1].trim());
+            CircuitElement target = null;
+            for(CircuitElement ce : elements) {
+                boolean between = (ce.node1.id == a && ce.node2.id == b) || (ce.node1.id == b && ce.node2.id == a);
+                if(between && (ce instanceof Resistor || ce instanceof VoltageSource)) {
+                    target = ce;
+                    break;
+                }
+            }
+            if(target == null) throw new Exception("No hay un resistor ni una fuente de voltaje entre N" + a + " y N" + b + ".");
+            sens = solver.sensitivitiesOfElementCurrent(target);
+            label = "I(" + typeCode(target) + " N" + target.node1.id + "->N" + target.node2.id + ")";
+        } else {
+            throw new Exception("Salida inválida: " + output);
+        }
+
+        sens.sort((x, y) -> Double.compare(Math.abs(y.normalized()), Math.abs(x.normalized())));
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n--- Sensibilidad de ").append(label).append(" (método adjunto) ---\n");
+        for(Sensitivity s : sens) {
+            CircuitElement ce = s.element;
+            String name = typeCode(ce) + " N" + ce.node1.id + "-N" + ce.node2.id + " (" + ce.getFormattedValue() + ")";
+            sb.append(String.format("%-30s d/dp = %12.4e   (d/dp)*p = %12.4e%n", name, s.derivative, s.normalized()));
+        }
+        return sb.toString();
     }
-}
 
     // Panel de dibujo del circuito; dibuja nodos y elementos.
      class CircuitPanel extends JPanel {
         @Override
         protected void paintComponent(Graphics g) {
             super.paintComponent(g);
+            Circuit circuit = history.current();
+            // Posición actual de cada nodo: un elemento guarda el nodo con el que se creó, y si el
+            // nodo se movió después, la posición vigente es la del nodo con ese id en el circuito.
+            HashMap<Integer, Node> positions = new HashMap<>();
             // Primero dibuja los nodos
-            for(Node n : nodes) {
+            for(Node n : circuit.nodes()) {
+                positions.putIfAbsent(n.id, n);
                 g.setColor(Color.BLUE);
                 g.fillOval(n.x-8, n.y-8, 16, 16);
                 g.setColor(Color.BLACK);
                 g.drawString("N" + n.id, n.x-15, n.y-10);
             }
             // Luego dibuja los elementos (línea entre nodos con etiqueta)
-            for(CircuitElement elem : elements) {
-                int x1 = elem.node1.x;
-                int y1 = elem.node1.y;
-                int x2 = elem.node2.x;
-                int y2 = elem.node2.y;
+            for(CircuitElement elem : circuit.elements()) {
+                Node p1 = positions.getOrDefault(elem.node1.id, elem.node1);
+                Node p2 = positions.getOrDefault(elem.node2.id, elem.node2);
+                int x1 = p1.x;
+                int y1 = p1.y;
+                int x2 = p2.x;
+                int y2 = p2.y;
                 if(elem instanceof Cable) {
                     g.setColor(Color.GREEN);
                     drawCable(g, x1, y1, x2, y2);
@@ -501,6 +817,18 @@ public class CircuitSolverGUI extends JFrame {
                     g.setColor(Color.ORANGE);
                     drawCurrentSource(g, x1, y1, x2, y2);
                     g.drawString("I="+elem.getFormattedValue(), (x1+x2)/2, (y1+y2)/2);
+                } else if(elem instanceof Capacitor) {
+                    g.setColor(Color.CYAN.darker());
+                    drawCapacitor(g, x1, y1, x2, y2);
+                    g.drawString("C="+elem.getFormattedValue(), (x1+x2)/2, (y1+y2)/2);
+                } else if(elem instanceof Inductor) {
+                    g.setColor(Color.PINK.darker());
+                    drawInductor(g, x1, y1, x2, y2);
+                    g.drawString("L="+elem.getFormattedValue(), (x1+x2)/2, (y1+y2)/2);
+                } else if(elem instanceof Diode) {
+                    g.setColor(Color.DARK_GRAY);
+                    drawDiode(g, x1, y1, x2, y2);
+                    g.drawString("D", (x1+x2)/2, (y1+y2)/2);
                 }
             }
         }
@@ -528,12 +856,37 @@ public class CircuitSolverGUI extends JFrame {
             g.drawLine(cx, cy, cx+5, cy+5);
             g.drawLine(cx, cy, cx-5, cy+5);
         }
+        private void drawCapacitor(Graphics g, int x1, int y1, int x2, int y2) {
+            g.drawLine(x1, y1, x2, y2);
+            // Dibuja dos placas paralelas en el centro
+            int cx = (x1+x2)/2;
+            int cy = (y1+y2)/2;
+            g.drawLine(cx-3, cy-8, cx-3, cy+8);
+            g.drawLine(cx+3, cy-8, cx+3, cy+8);
+        }
+        private void drawDiode(Graphics g, int x1, int y1, int x2, int y2) {
+            g.drawLine(x1, y1, x2, y2);
+            // Dibuja un triángulo con una barra en el centro
+            int cx = (x1+x2)/2;
+            int cy = (y1+y2)/2;
+            g.drawPolygon(new int[]{cx-6, cx-6, cx+4}, new int[]{cy-6, cy+6, cy}, 3);
+            g.drawLine(cx+4, cy-6, cx+4, cy+6);
+        }
+        private void drawInductor(Graphics g, int x1, int y1, int x2, int y2) {
+            g.drawLine(x1, y1, x2, y2);
+            // Dibuja unas espiras en el centro
+            int cx = (x1+x2)/2;
+            int cy = (y1+y2)/2;
+            for(int k=-1; k<=1; k++) {
+                g.drawArc(cx + k*8 - 4, cy-4, 8, 8, 0, 180);
+            }
+        }
     }
 
-    // Clase para representar nodos
+    // Clase para representar nodos (inmutable: mover un nodo es reemplazarlo por otro con el mismo id)
     static class Node {
-        int id;
-        int x, y;
+        final int id;
+        final int x, y;
         public Node(int id, int x, int y) {
             this.id = id;
             this.x = x;
@@ -541,10 +894,11 @@ public class CircuitSolverGUI extends JFrame {
         }
     }
 
-    // Clase abstracta para elementos del circuito.
+    // Clase abstracta para elementos del circuito. Los elementos son inmutables: cambiar un valor es
+    // reemplazar el elemento (ver copyElement), así un circuito ya tomado por un análisis no cambia.
     static abstract class CircuitElement {
-        Node node1, node2;
-        double value; // Valor numérico correspondiente al elemento
+        final Node node1, node2;
+        final double value; // Valor numérico correspondiente al elemento
         public CircuitElement(Node node1, Node node2, double value) {
             this.node1 = node1;
             this.node2 = node2;
@@ -555,7 +909,7 @@ public class CircuitSolverGUI extends JFrame {
 
     // Resistor
     static class Resistor extends CircuitElement {
-        double resistance;
+        final double resistance;
         public Resistor(Node node1, Node node2, double resistance) {
             super(node1, node2, resistance);
             this.resistance = resistance;
@@ -568,7 +922,7 @@ public class CircuitSolverGUI extends JFrame {
 
     // Fuente de voltaje
     static class VoltageSource extends CircuitElement {
-        double voltage;
+        final double voltage;
         public VoltageSource(Node node1, Node node2, double voltage) {
             super(node1, node2, voltage);
             this.voltage = voltage;
@@ -581,7 +935,7 @@ public class CircuitSolverGUI extends JFrame {
 
     // Fuente de corriente
     static class CurrentSource extends CircuitElement {
-        double current;
+        final double current;
         public CurrentSource(Node node1, Node node2, double current) {
             super(node1, node2, current);
             this.current = current;
@@ -592,12 +946,110 @@ public class CircuitSolverGUI extends JFrame {
         }
     }
 
+    // Capacitor (circuito abierto en el análisis DC)
+    static class Capacitor extends CircuitElement {
+        final double capacitance;
+        public Capacitor(Node node1, Node node2, double capacitance) {
+            super(node1, node2, capacitance);
+            this.capacitance = capacitance;
+        }
+        @Override
+        public String getFormattedValue() {
+            return formatWithUnit(capacitance, "F");
+        }
+    }
+
+    // Inductor (cortocircuito en el análisis DC; su corriente es una incógnita más, como en las fuentes de voltaje)
+    static class Inductor extends CircuitElement {
+        final double inductance;
+        public Inductor(Node node1, Node node2, double inductance) {
+            super(node1, node2, inductance);
+            this.inductance = inductance;
+        }
+        @Override
+        public String getFormattedValue() {
+            return formatWithUnit(inductance, "H");
+        }
+    }
+
+    /**
+     * Elemento no lineal de dos terminales: su corriente (de node1 a node2) depende de la tensión
+     * v = V(node1) - V(node2). Newton-Raphson lo reemplaza en cada iteración por su linealización:
+     * una conductancia dI/dv en paralelo con una fuente de corriente.
+     */
+    static abstract class NonlinearElement extends CircuitElement {
+        public NonlinearElement(Node node1, Node node2, double value) {
+            super(node1, node2, value);
+        }
+        abstract double current(double v);
+        abstract double conductance(double v);
+        // Limita el cambio de tensión entre iteraciones para evitar desbordes (por defecto no limita).
+        double limitVoltage(double vNew, double vOld) {
+            return vNew;
+        }
+        // Tensión con la que se linealiza en la primera iteración.
+        double initialVoltage() {
+            return 0;
+        }
+    }
+
+    // Diodo (ánodo = node1, cátodo = node2) con el modelo de Shockley; el valor es la corriente de saturación.
+    static class Diode extends NonlinearElement {
+        static final double THERMAL_VOLTAGE = 0.025852;
+        final double saturationCurrent;
+        public Diode(Node node1, Node node2, double saturationCurrent) {
+            super(node1, node2, saturationCurrent);
+            this.saturationCurrent = saturationCurrent;
+        }
+        @Override
+        double current(double v) {
+            return saturationCurrent * (Math.exp(v / THERMAL_VOLTAGE) - 1);
+        }
+        @Override
+        double conductance(double v) {
+            return saturationCurrent / THERMAL_VOLTAGE * Math.exp(v / THERMAL_VOLTAGE);
+        }
+        // Tensión a partir de la cual la exponencial crece demasiado rápido para seguirla sin limitar.
+        private double criticalVoltage() {
+            return THERMAL_VOLTAGE * Math.log(THERMAL_VOLTAGE / (Math.sqrt(2) * saturationCurrent));
+        }
+        // Limitación de la tensión de la juntura como en SPICE (pnjlim): por encima de la tensión
+        // crítica el avance se hace logarítmico.
+        @Override
+        double limitVoltage(double vNew, double vOld) {
+            double vcrit = criticalVoltage();
+            if(vNew > vcrit && Math.abs(vNew - vOld) > 2 * THERMAL_VOLTAGE) {
+                if(vOld > 0) {
+                    double arg = 1 + (vNew - vOld) / THERMAL_VOLTAGE;
+                    vNew = (arg > 0) ? vOld + THERMAL_VOLTAGE * Math.log(arg) : vcrit;
+                } else {
+                    vNew = THERMAL_VOLTAGE * Math.log(vNew / THERMAL_VOLTAGE);
+                }
+            }
+            return vNew;
+        }
+        @Override
+        double initialVoltage() {
+            return criticalVoltage();
+        }
+        @Override
+        public String getFormattedValue() {
+            return "Is=" + saturationCurrent + " A";
+        }
+    }
+
     // Método auxiliar para dar formato a números con unidades usando notación SI simple.
     private static String formatWithUnit(double value, String unit) {
         if(value >= 1e6)
             return (value/1e6) + " M" + unit;
         else if(value >= 1e3)
             return (value/1e3) + " k" + unit;
+        else if(value > 0 && value < 1e-9)
+            return (value*1e12) + " p" + unit;
+        else if(value > 0 && value < 1e-6)
+            return (value*1e9) + " n" + unit;
+        else if(value > 0 && value < 1e-3)
+            return (value*1e6) + " u" + unit;
         else if(value < 1)
             return (value*1e3) + " m" + unit;
         else
@@ -605,289 +1057,4030 @@ public class CircuitSolverGUI extends JFrame {
     }
 
     /**
-     * Clase que arma y resuelve el sistema de ecuaciones del circuito usando el análisis nodal modificado (MNA).
-     * La incógnita es, para cada nodo (excepto el de referencia, que se fija en 0) su tensión,
-     * y para cada fuente de voltaje una incógnita adicional (la corriente a través de la fuente).
-     * Se almacena la matriz aumentada en la variable augmentedMatrixString para visualizarla.
+     * Lista inmutable persistente: un árbol con hasta 32 hijos por nivel y los elementos en las hojas.
+     * plus() y with() copian sólo el camino de la raíz a la hoja que cambia (a lo sumo 32 referencias
+     * por nivel, O(log32 n) niveles) y comparten el resto del árbol con la versión anterior. La lista
+     * es ella misma la vista de sólo lectura, así que pedirla no copia nada.
      */
-    static class CircuitSolver {
-        ArrayList<Node> nodes;
-        ArrayList<CircuitElement> elements;
-        // Mapa de voltajes resultantes por nodo (clave = id de nodo)
-        HashMap<Integer,Double> nodeVoltages;
-        // Listas separadas de fuentes de voltaje y corriente
-        ArrayList<VoltageSource> voltageSources;
-        ArrayList<CurrentSource> currentSources;
-        // Variable para almacenar la matriz aumentada (como cadena) que se usó para resolver el sistema.
-        private String augmentedMatrixString;
-        
-        public CircuitSolver(ArrayList<Node> nodes, ArrayList<CircuitElement> elements) {
-            // Se hace una copia de la lista original (puede modificarse)
-            this.nodes = nodes;
-            this.elements = elements;
-            voltageSources = new ArrayList<>();
-            currentSources = new ArrayList<>();
-            nodeVoltages = new HashMap<>();
-            // Se extraen las fuentes de voltaje y las de corriente del listado general
-            for(CircuitElement ce : elements) {
-                if(ce instanceof VoltageSource)
-                    voltageSources.add((VoltageSource) ce);
-                if(ce instanceof CurrentSource)
-                    currentSources.add((CurrentSource) ce);
-            }
+    static final class PersistentVector<T> extends AbstractList<T> implements RandomAccess {
+        private static final int BITS = 5;
+        private static final int WIDTH = 1 << BITS;
+        private static final int MASK = WIDTH - 1;
+        private static final PersistentVector<?> EMPTY = new PersistentVector<>(0, 0, new Object[0]);
+
+        private final int size;
+        // Bits del índice que quedan debajo de la raíz (0 = la raíz es una hoja)
+        private final int shift;
+        private final Object[] root;
+
+        private PersistentVector(int size, int shift, Object[] root) {
+            this.size = size;
+            this.shift = shift;
+            this.root = root;
         }
-        
-        // Ejecuta el método de resolución y almacena los potenciales en nodeVoltages.
-        public void solveCircuit() throws Exception {
-            // Suponemos que el nodo con id 0 es tierra (V=0).
-            // Se crean índices para los nodos no tierra.
-            HashMap<Integer,Integer> nodeIndex = new HashMap<>();
-            int index = 0;
-            for(Node n : nodes) {
-                if(n.id != 0) {
-                    nodeIndex.put(n.id, index);
-                    index++;
-                }
-            }
-            int nNodes = nodeIndex.size(); 
-            int nVoltages = voltageSources.size();
-            int nEquations = nNodes + nVoltages;
-            
-            // Se arma la matriz A (nEquations x nEquations) y el vector b.
-            double[][] A = new double[nEquations][nEquations];
-            double[] b = new double[nEquations];
-            
-            // Primera parte: ecuaciones de KCL para cada nodo (excepto tierra)
-            for(Node n : nodes) {
-                if(n.id == 0) continue;
-                int eq = nodeIndex.get(n.id);
-                // Para resistores: se suman las conductancias
-                for(CircuitElement ce : elements) {
-                    if(ce instanceof Resistor) {
-                        Resistor r = (Resistor) ce;
-                        if(r.node1.id == n.id || r.node2.id == n.id) {
-                            double g = 1.0 / r.resistance;
-                            A[eq][eq] += g;
-                            int other = (r.node1.id == n.id ? r.node2.id : r.node1.id);
-                            if(other != 0 && nodeIndex.containsKey(other)) {
-                                int col = nodeIndex.get(other);
-                                A[eq][col] -= g;
-                            }
-                        }
-                    }
-                }
-                // Fuentes de corriente: inyecciones o extracciones de corriente
-                for(CircuitElement ce : elements) {
-                    if(ce instanceof CurrentSource) {
-                        CurrentSource cs = (CurrentSource) ce;
-                        if(cs.node1.id == n.id)
-                            b[eq] -= cs.current; // corriente que sale
-                        if(cs.node2.id == n.id)
-                            b[eq] += cs.current; // corriente que entra
-                    }
-                }
-                // Fuentes de voltaje conectadas al nodo
-                for (int k=0; k<voltageSources.size(); k++) {
-                    VoltageSource vs = voltageSources.get(k);
-                    if(vs.node1.id == n.id) {
-                        A[eq][nNodes + k] += 1;
-                    }
-                    if(vs.node2.id == n.id) {
-                        A[eq][nNodes + k] -= 1;
-                    }
-                }
-            }
-            
-            // Segunda parte: ecuaciones para cada fuente de voltaje:
-            // Imponen: V(node1) - V(node2) = vs.voltage
-            for (int k=0; k<voltageSources.size(); k++) {
-                VoltageSource vs = voltageSources.get(k);
-                int eq = nNodes + k;
-                if(vs.node1.id != 0 && nodeIndex.containsKey(vs.node1.id)) {
-                    A[eq][nodeIndex.get(vs.node1.id)] = 1;
-                }
-                if(vs.node2.id != 0 && nodeIndex.containsKey(vs.node2.id)) {
-                    A[eq][nodeIndex.get(vs.node2.id)] = -1;
-                }
-                b[eq] = vs.voltage;
-            }
-            
-            // Se arma la matriz aumentada (para mostrarla) a partir de A y b.
-            double[][] aug = new double[nEquations][nEquations+1];
-            for (int i=0; i<nEquations; i++){
-                for (int j=0; j<nEquations; j++){
-                    aug[i][j] = A[i][j];
-                }
-                aug[i][nEquations] = b[i];
+
+        @SuppressWarnings("unchecked")
+        static <T> PersistentVector<T> empty() {
+            return (PersistentVector<T>) EMPTY;
+        }
+
+        // Arma el árbol de una vez: hojas de 32 elementos y luego niveles de 32 hijos hasta la raíz.
+        static <T> PersistentVector<T> of(Collection<? extends T> items) {
+            if(items.isEmpty()) return empty();
+            Object[] level = chunk(items.toArray());
+            int shift = 0;
+            while(level.length > 1) {
+                level = chunk(level);
+                shift += BITS;
             }
-            augmentedMatrixString = matrixToString(aug);
-            
-            // Se resuelve el sistema: X = (V1, V2, ..., VN, I1, I2, ...).
-            double[] sol = gaussianElimination(A, b);
-            
-            // Se almacena el resultado asignando V=0 para el nodo tierra (id 0) y los valores resueltos para los demás.
-            nodeVoltages.put(0, 0.0);
-            for(Integer id : nodeIndex.keySet()){
-                int pos = nodeIndex.get(id);
-                nodeVoltages.put(id, sol[pos]);
+            return new PersistentVector<>(items.size(), shift, (Object[]) level[0]);
+        }
+
+        private static Object[] chunk(Object[] items) {
+            Object[] parents = new Object[(items.length + MASK) >>> BITS];
+            for(int p=0; p<parents.length; p++) {
+                parents[p] = Arrays.copyOfRange(items, p << BITS, Math.min(items.length, (p + 1) << BITS));
             }
+            return parents;
         }
-        
-        public HashMap<Integer, Double> getNodeVoltages() {
-            return nodeVoltages;
+
+        @Override
+        public int size() {
+            return size;
         }
-        
-        // Método para retornar la cadena que representa la matriz aumentada.
-        public String getAugmentedMatrixString() {
-            return augmentedMatrixString;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            if(index < 0 || index >= size) throw new IndexOutOfBoundsException("Índice " + index + " de " + size);
+            Object[] node = root;
+            for(int level = shift; level > 0; level -= BITS) node = (Object[]) node[(index >>> level) & MASK];
+            return (T) node[index & MASK];
         }
-        
-        // Método que convierte una matriz a una cadena de texto para visualización.
-        private String matrixToString(double[][] M) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < M.length; i++) {
-                for (int j = 0; j < M[0].length; j++) {
-                    sb.append(String.format("%10.4f ", M[i][j]));
-                }
-                sb.append("\n");
+
+        // Lista con item agregado al final.
+        PersistentVector<T> plus(T item) {
+            if(size == 0) return new PersistentVector<>(1, 0, new Object[]{item});
+            if(size == 1 << (shift + BITS)) {
+                // Raíz llena: crece un nivel y la raíz vieja pasa a ser su primer hijo
+                return new PersistentVector<>(size + 1, shift + BITS, new Object[]{root, path(shift, item)});
             }
-            return sb.toString();
+            return new PersistentVector<>(size + 1, shift, append(root, shift, size, item));
         }
-        
-        // Método de eliminación gaussiana para resolver el sistema lineal.
-        private double[] gaussianElimination(double[][] A, double[] b) throws Exception {
-            int n = b.length;
-            // Construir la matriz aumentada para la eliminación
-            double[][] aug = new double[n][n+1];
-            for (int i=0; i<n; i++){
-                for (int j=0; j<n; j++){
-                    aug[i][j] = A[i][j];
-                }
-                aug[i][n] = b[i];
+
+        // Lista con item en la posición index.
+        PersistentVector<T> with(int index, T item) {
+            if(index < 0 || index >= size) throw new IndexOutOfBoundsException("Índice " + index + " de " + size);
+            return new PersistentVector<>(size, shift, replace(root, shift, index, item));
+        }
+
+        // Lista sin las posiciones indicadas. Se rearma entera (O(n)): quitar cambia el índice de todo
+        // lo que sigue.
+        PersistentVector<T> without(Collection<Integer> indices) {
+            if(indices.isEmpty()) return this;
+            HashSet<Integer> removed = new HashSet<>(indices);
+            ArrayList<T> kept = new ArrayList<>(size);
+            for(int i=0; i<size; i++) {
+                if(!removed.contains(i)) kept.add(get(i));
+            }
+            return of(kept);
+        }
+
+        private static Object[] path(int level, Object item) {
+            return (level == 0) ? new Object[]{item} : new Object[]{path(level - BITS, item)};
+        }
+
+        private static Object[] append(Object[] node, int level, int index, Object item) {
+            int c = (index >>> level) & MASK;
+            Object[] copy = Arrays.copyOf(node, Math.max(node.length, c + 1));
+            if(level == 0) copy[c] = item;
+            else copy[c] = (c < node.length) ? append((Object[]) node[c], level - BITS, index, item) : path(level - BITS, item);
+            return copy;
+        }
+
+        private static Object[] replace(Object[] node, int level, int index, Object item) {
+            Object[] copy = node.clone();
+            int c = (index >>> level) & MASK;
+            copy[c] = (level == 0) ? item : replace((Object[]) node[c], level - BITS, index, item);
+            return copy;
+        }
+    }
+
+    /**
+     * Circuito inmutable. Nodos y elementos se guardan en listas persistentes (PersistentVector):
+     * agregar un nodo o un elemento, o reemplazar uno que cambió, devuelve un circuito nuevo que copia
+     * sólo O(log32 n) referencias y comparte el resto con el anterior, así que cada nivel del historial
+     * de deshacer cuesta lo que cambió y no el circuito entero. nodes() y elements() devuelven esas
+     * listas sin copiarlas. Como nodos y elementos también son inmutables, un análisis puede leer una
+     * instantánea (incluso desde otro hilo) mientras la interfaz sigue editando.
+     */
+    static final class Circuit {
+        static final Circuit EMPTY = new Circuit(PersistentVector.empty(), PersistentVector.empty());
+
+        private final PersistentVector<Node> nodes;
+        private final PersistentVector<CircuitElement> elements;
+
+        private Circuit(PersistentVector<Node> nodes, PersistentVector<CircuitElement> elements) {
+            this.nodes = nodes;
+            this.elements = elements;
+        }
+
+        static Circuit of(List<Node> nodes, List<CircuitElement> elements) {
+            return new Circuit(PersistentVector.of(nodes), PersistentVector.of(elements));
+        }
+
+        Circuit withNode(Node node) {
+            return new Circuit(nodes.plus(node), elements);
+        }
+
+        Circuit withElement(CircuitElement element) {
+            return new Circuit(nodes, elements.plus(element));
+        }
+
+        // Nodos y elementos en el orden en que se agregaron (listas inmutables, sin copia).
+        List<Node> nodes() {
+            return nodes;
+        }
+
+        List<CircuitElement> elements() {
+            return elements;
+        }
+
+        // Primer nodo agregado con ese id, o null.
+        Node findNode(int id) {
+            for(Node n : nodes) {
+                if(n.id == id) return n;
+            }
+            return null;
+        }
+
+        /**
+         * Circuito con los cambios de diff, que debe haberse calculado sobre este circuito; deja en
+         * diff.replacements los elementos nuevos de los que cambian de valor. Los cambios de valor y de
+         * posición reemplazan sólo su camino en las listas y los agregados van al final; quitar nodos o
+         * elementos rearma la lista correspondiente (es un cambio de topología, que de todos modos obliga
+         * a resolver desde cero).
+         */
+        Circuit apply(NetlistDiff diff) {
+            PersistentVector<CircuitElement> es = elements;
+            diff.replacements.clear();
+            for(int k=0; k<diff.changedElements.size(); k++) {
+                CircuitElement ce = diff.changedElements.get(k);
+                CircuitElement replacement = copyElement(ce, ce.node1, ce.node2, diff.newValues.get(k));
+                diff.replacements.add(replacement);
+                es = es.with(diff.changedIndices.get(k), replacement);
+            }
+            // Los elementos siguen apuntando al nodo con el que se crearon; sólo cambia la posición,
+            // que el dibujo toma del nodo con ese id en el circuito.
+            PersistentVector<Node> ns = nodes;
+            for(int k=0; k<diff.movedNodes.size(); k++) {
+                Node n = diff.movedNodes.get(k);
+                ns = ns.with(diff.movedIndices.get(k), new Node(n.id, diff.movedTo.get(k).x, diff.movedTo.get(k).y));
+            }
+            es = es.without(diff.removedElementIndices);
+            ns = ns.without(diff.removedNodeIndices);
+            for(Node n : diff.addedNodes) ns = ns.plus(n);
+            if(!diff.addedElements.isEmpty()) {
+                HashMap<Integer, Node> idToNode = new HashMap<>();
+                for(Node n : ns) idToNode.putIfAbsent(n.id, n);
+                for(CircuitElement t : diff.addedElements) {
+                    es = es.plus(copyElement(t, idToNode.get(t.node1.id), idToNode.get(t.node2.id)));
+                }
+            }
+            return new Circuit(ns, es);
+        }
+    }
+
+    /**
+     * Historial de ediciones con varios niveles de deshacer y rehacer. Cada nivel guarda el circuito
+     * anterior, que comparte su estructura con el actual, y la descripción de la edición.
+     */
+    static final class EditHistory {
+        static final int MAX_LEVELS = 100;
+
+        private static final class Entry {
+            final Circuit circuit;
+            final String description;
+            Entry(Circuit circuit, String description) {
+                this.circuit = circuit;
+                this.description = description;
+            }
+        }
+
+        private final ArrayDeque<Entry> undo = new ArrayDeque<>();
+        private final ArrayDeque<Entry> redo = new ArrayDeque<>();
+        private Circuit current = Circuit.EMPTY;
+
+        Circuit current() {
+            return current;
+        }
+
+        // Pasa al circuito next; lo que se había deshecho ya no se puede rehacer.
+        void apply(Circuit next, String description) {
+            undo.push(new Entry(current, description));
+            if(undo.size() > MAX_LEVELS) undo.removeLast();
+            redo.clear();
+            current = next;
+        }
+
+        // Vuelve al circuito anterior y devuelve la descripción de la edición deshecha (null si no hay).
+        String undo() {
+            Entry e = undo.poll();
+            if(e == null) return null;
+            redo.push(new Entry(current, e.description));
+            current = e.circuit;
+            return e.description;
+        }
+
+        // Rehace la última edición deshecha y devuelve su descripción (null si no hay).
+        String redo() {
+            Entry e = redo.poll();
+            if(e == null) return null;
+            undo.push(new Entry(current, e.description));
+            current = e.circuit;
+            return e.description;
+        }
+    }
+
+    /**
+     * Clase que arma y resuelve el sistema de ecuaciones del circuito usando el análisis nodal modificado (MNA).
+     * La incógnita es, para cada nodo (excepto el de referencia, que se fija en 0) su tensión,
+     * y para cada fuente de voltaje una incógnita adicional (la corriente a través de la fuente).
+     * La matriz aumentada se arma como texto sólo cuando se pide (getAugmentedMatrixString) y sólo
+     * para sistemas de hasta MAX_DISPLAY_EQUATIONS ecuaciones.
+     */
+    static class CircuitSolver {
+        List<Node> nodes;
+        ArrayList<CircuitElement> elements;
+        // Posición de cada elemento (por identidad) en elements y en su lista por tipo (fuentes o
+        // inductores), para que replaceElement() y contains() no recorran las listas.
+        private final IdentityHashMap<CircuitElement,Integer> elementIndex = new IdentityHashMap<>();
+        private final IdentityHashMap<CircuitElement,Integer> typedIndex = new IdentityHashMap<>();
+        // Nodo representante de cada id: los nodos unidos por cables se tratan como uno solo
+        // (una vista derivada del circuito; los elementos no se modifican).
+        private final HashMap<Integer,Integer> representative;
+        // Mapa de voltajes resultantes por nodo (clave = id de nodo)
+        HashMap<Integer,Double> nodeVoltages;
+        // Listas separadas de fuentes de voltaje y corriente
+        ArrayList<VoltageSource> voltageSources;
+        ArrayList<CurrentSource> currentSources;
+        // Inductores: cada uno agrega una incógnita de corriente después de las de las fuentes de voltaje
+        ArrayList<Inductor> inductors;
+        // Elementos no lineales: si hay alguno, el sistema se resuelve con Newton-Raphson
+        ArrayList<NonlinearElement> nonlinearElements;
+        private String convergenceReport = null;
+        // Límite de iteraciones, tolerancias y conductancia mínima en paralelo con cada elemento no lineal
+        static final int MAX_NEWTON_ITERATIONS = 100;
+        static final double NEWTON_VOLTAGE_TOL = 1e-9;
+        static final double NEWTON_RELATIVE_TOL = 1e-6;
+        static final double NEWTON_CURRENT_TOL = 1e-12;
+        static final double GMIN = 1e-12;
+        // Descripción del sistema cuando no se conserva la matriz densa (en banda o fuera del heap).
+        private String matrixNote;
+        // Sistemas más grandes no se muestran: el texto de la matriz ocupa O(n²).
+        static final int MAX_DISPLAY_EQUATIONS = 60;
+        // Índice de cada nodo no tierra dentro del vector de incógnitas
+        private HashMap<Integer,Integer> nodeIndex;
+        private int nNodes;
+        // A partir de este número de ecuaciones la matriz se guarda fuera del heap, mapeada a un archivo
+        // temporal en scratchDirectory (null = directorio temporal del sistema).
+        static final int OFF_HEAP_THRESHOLD = 2000;
+        private boolean offHeapStorage = false;
+        private File scratchDirectory = null;
+        // Sistema armado y su factorización LU (sólo en la ruta densa), para volver a resolver
+        // sin rearmar todo cuando cambian valores de elementos.
+        private double[][] matrix;
+        private double[] rhs;
+        private Factorization lu;
+        // Matriz en banda (sin factorizar) cuando se eligió el solver en banda en lugar del denso
+        private BandMatrix band;
+        // A partir de este número de ecuaciones se prueba reordenar (RCM) y resolver en banda.
+        static final int BANDED_MIN_EQUATIONS = 100;
+        private boolean matrixDirty = false;
+        // Cambios de resistores que se absorben con actualizaciones de rango 1 antes de refactorizar
+        static final int MAX_RANK_ONE_UPDATES = 16;
+        private boolean refactored = false;
+        // Vector solución completo (tensiones y corrientes de las fuentes de voltaje)
+        private double[] solution;
+        
+        public CircuitSolver(List<Node> nodes, List<CircuitElement> elements) {
+            // Los nodos y elementos se comparten con el circuito; la lista de elementos es propia
+            // porque replaceElement() la actualiza.
+            this.nodes = nodes;
+            this.elements = new ArrayList<>(elements);
+            representative = representativeIds(nodes, elements);
+            voltageSources = new ArrayList<>();
+            currentSources = new ArrayList<>();
+            inductors = new ArrayList<>();
+            nonlinearElements = new ArrayList<>();
+            nodeVoltages = new HashMap<>();
+            // Se extraen las fuentes de voltaje y las de corriente del listado general
+            for(CircuitElement ce : elements) {
+                elementIndex.put(ce, elementIndex.size());
+                if(ce instanceof VoltageSource) {
+                    typedIndex.put(ce, voltageSources.size());
+                    voltageSources.add((VoltageSource) ce);
+                }
+                if(ce instanceof CurrentSource) {
+                    typedIndex.put(ce, currentSources.size());
+                    currentSources.add((CurrentSource) ce);
+                }
+                if(ce instanceof Inductor) {
+                    typedIndex.put(ce, inductors.size());
+                    inductors.add((Inductor) ce);
+                }
+                if(ce instanceof NonlinearElement)
+                    nonlinearElements.add((NonlinearElement) ce);
+            }
+        }
+        
+        // Ejecuta el método de resolución y almacena los potenciales en nodeVoltages.
+        public void solveCircuit() throws Exception {
+            int nEquations = buildIndex();
+
+            double[] sol;
+            BandMatrix banded = null;
+            if(nonlinearElements.isEmpty() && nEquations >= BANDED_MIN_EQUATIONS) {
+                banded = BandMatrix.forSystem(this, nEquations);
+            }
+            if(!nonlinearElements.isEmpty()) {
+                sol = solveNonlinear(nEquations);
+            } else if(banded != null) {
+                // Escaleras y cadenas: tras reordenar, la matriz es angosta y se factoriza en O(n·b²).
+                double[] b = new double[nEquations];
+                BandMatrix bandA = banded;
+                stampSystem(nEquations, (row, col, value) -> {
+                    if(col == nEquations) b[row] += value;
+                    else bandA.add(row, col, value);
+                });
+                matrixNote = "(Sistema de " + nEquations + " ecuaciones resuelto en banda: ancho de banda "
+                        + banded.bandwidth + " tras reordenar con Reverse Cuthill-McKee, " + banded.naturalBandwidth
+                        + " en el orden original; no se muestra)";
+                lu = BandedLU.factor(banded);
+                sol = lu.solve(b);
+                band = banded;
+                matrix = null;
+                rhs = b;
+            } else if(offHeapStorage || nEquations >= OFF_HEAP_THRESHOLD) {
+                // Sistemas grandes: la matriz se arma y se factoriza directamente en un archivo mapeado a
+                // memoria, sin copias en el heap (sólo el lado derecho). La memoria directa no sirve para
+                // esto porque su límite (MaxDirectMemorySize) es por defecto el mismo que el del heap.
+                // Los factores quedan en el archivo para las sensibilidades; como no se conserva la matriz
+                // sin factorizar, los cambios de valores se resuelven desde cero (canReuseFactorization).
+                OffHeapMatrix a = OffHeapMatrix.mapScratchFile(nEquations, nEquations, scratchDirectory);
+                double[] b = new double[nEquations];
+                try {
+                    stampSystem(nEquations, (row, col, value) -> {
+                        if(col == nEquations) b[row] += value;
+                        else a.add(row, col, value);
+                    });
+                    lu = OffHeapLU.factor(a);
+                } catch(Exception ex) {
+                    a.close();
+                    throw ex;
+                }
+                matrixNote = "(Matriz de " + nEquations + " x " + nEquations
+                        + " factorizada fuera del heap; no se muestra)";
+                sol = lu.solve(b);
+                matrix = null;
+                band = null;
+                rhs = b;
+            } else {
+                // Se arma la matriz A (nEquations x nEquations) y el vector b.
+                double[][] A = new double[nEquations][nEquations];
+                double[] b = new double[nEquations];
+                stampSystem(nEquations, (row, col, value) -> {
+                    if(col == nEquations) b[row] += value;
+                    else A[row][col] += value;
+                });
+
+                matrixNote = null;
+
+                // Se resuelve el sistema: X = (V1, V2, ..., VN, I1, I2, ...).
+                sol = gaussianElimination(A, b);
+                matrix = A;
+                band = null;
+                rhs = b;
+            }
+            storeSolution(sol);
+        }
+
+        // Suponemos que el nodo con id 0 es tierra (V=0).
+        // Se crean índices para los representantes no tierra y se devuelve el número total de ecuaciones.
+        int buildIndex() {
+            nodeIndex = new HashMap<>();
+            int index = 0;
+            for(Node n : nodes) {
+                int rep = representative.get(n.id);
+                if(rep != 0 && !nodeIndex.containsKey(rep)) {
+                    nodeIndex.put(rep, index);
+                    index++;
+                }
+            }
+            nNodes = nodeIndex.size();
+            return nNodes + voltageSources.size() + inductors.size();
+        }
+
+        // Fila (e incógnita de corriente) del inductor k-ésimo.
+        int inductorRow(int k) {
+            return nNodes + voltageSources.size() + k;
+        }
+
+        // Se almacena el resultado asignando V=0 para el nodo tierra (id 0) y los valores resueltos para los demás.
+        private void storeSolution(double[] sol) {
+            solution = sol;
+            nodeVoltages.put(0, 0.0);
+            for(Integer id : nodeIndex.keySet()){
+                int pos = nodeIndex.get(id);
+                nodeVoltages.put(id, sol[pos]);
+            }
+        }
+
+        // Indica si se conserva el sistema factorizado y se puede usar resolve() tras replaceElement().
+        // Fuera del heap se conservan sólo los factores, no el sistema armado que corrige replaceElement().
+        public boolean canReuseFactorization() {
+            return lu != null && nonlinearElements.isEmpty() && (matrix != null || band != null);
+        }
+
+        // Resumen de las iteraciones de Newton-Raphson (null si el circuito es lineal).
+        public String getConvergenceReport() {
+            return convergenceReport;
+        }
+
+        /**
+         * Punto de operación DC con Newton-Raphson. Todas las iteraciones tienen las entradas en las
+         * mismas posiciones (la parte lineal más las de los elementos no lineales), así que el orden de
+         * incógnitas (RCM), el orden de filas y el patrón de L y U (SparseFactorization) se calculan una
+         * sola vez; cada iteración sólo carga los valores, refactoriza sobre ese patrón y calcula el
+         * residuo con las entradas del sistema, todo en O(entradas de L + U). Si un pivote deja de servir
+         * se vuelve a elegir el orden de filas con los valores de esa iteración.
+         */
+        private double[] solveNonlinear(int n) throws Exception {
+            int nl = nonlinearElements.size();
+            int[] node1 = new int[nl];
+            int[] node2 = new int[nl];
+            double[] vd = new double[nl];
+            for (int d=0; d<nl; d++){
+                NonlinearElement ne = nonlinearElements.get(d);
+                node1[d] = indexOf(ne.node1);
+                node2[d] = indexOf(ne.node2);
+                vd[d] = ne.initialVoltage();
+            }
+            // Análisis con la primera linealización, que incluye las posiciones de los elementos no lineales
+            SparseFactorization factors = SparseFactorization.analyze(n, stamp -> {
+                stampSystem(n, stamp);
+                for (int d=0; d<nl; d++){
+                    stampConductance(stamp, node1[d], node2[d], nonlinearElements.get(d).conductance(vd[d]) + GMIN);
+                }
+            });
+            // Parte lineal por entradas y entradas que toca cada elemento no lineal (con su signo)
+            double[] linear = new double[factors.entries()];
+            double[] linearRhs = new double[n];
+            SparseFactorization f0 = factors;
+            stampSystem(n, (row, col, value) -> {
+                if(col == n) linearRhs[row] += value;
+                else linear[f0.entry(row, col)] += value;
+            });
+            int[][] entries = new int[nl][];
+            double[][] signs = new double[nl][];
+            for (int d=0; d<nl; d++){
+                ArrayList<Integer> e = new ArrayList<>();
+                ArrayList<Double> s = new ArrayList<>();
+                stampConductance((row, col, value) -> {
+                    e.add(f0.entry(row, col));
+                    s.add(value);
+                }, node1[d], node2[d], 1);
+                entries[d] = e.stream().mapToInt(Integer::intValue).toArray();
+                signs[d] = s.stream().mapToDouble(Double::doubleValue).toArray();
+            }
+
+            double[] J = new double[factors.entries()];
+            double[] b = new double[n];
+            double[] x = new double[n];
+            double[] xNew = new double[n];
+            double[] r = new double[n];
+            // La factorización recién analizada cuenta como completa la primera vez que se usa
+            boolean fresh = true;
+            int fullFactorizations = 0;
+            int refactorizations = 0;
+            double lastStep = Double.POSITIVE_INFINITY;
+            double lastNewtonStep = Double.POSITIVE_INFINITY;
+            StringBuilder report = new StringBuilder();
+            boolean converged = false;
+            int iteration = 0;
+            while(!converged && iteration < MAX_NEWTON_ITERATIONS) {
+                iteration++;
+                linearize(linear, linearRhs, entries, signs, node1, node2, vd, J, b);
+                factors.load(J);
+                if(!factors.refactor()) {
+                    factors = factors.reanalyze(J);
+                    fresh = true;
+                    if(!factors.refactor())
+                        throw new Exception("El sistema presenta singularidad o está mal condicionado.");
+                }
+                if(fresh) fullFactorizations++;
+                else refactorizations++;
+                fresh = false;
+                factors.solveInto(b, xNew);
+
+                // Amortiguación: si el paso de Newton crece respecto del paso de Newton anterior (no del
+                // paso ya amortiguado, que dejaría la mitad pendiente y amortiguaría siempre) se avanza
+                // sólo la mitad.
+                double step = 0;
+                for (int i=0; i<n; i++){
+                    step = Math.max(step, Math.abs(xNew[i] - x[i]));
+                }
+                double damping = (step > lastNewtonStep) ? 0.5 : 1.0;
+                lastNewtonStep = step;
+                double maxX = 0;
+                for (int i=0; i<n; i++){
+                    x[i] += damping * (xNew[i] - x[i]);
+                    maxX = Math.max(maxX, Math.abs(x[i]));
+                }
+                lastStep = step * damping;
+
+                // Limitación de la tensión de cada elemento para la próxima linealización
+                boolean limited = false;
+                for (int d=0; d<nl; d++){
+                    double v = valueAt(x, node1[d]) - valueAt(x, node2[d]);
+                    double vl = nonlinearElements.get(d).limitVoltage(v, vd[d]);
+                    if(Math.abs(vl - v) > NEWTON_VOLTAGE_TOL) limited = true;
+                    vd[d] = vl;
+                }
+                double residual = kclResidual(factors, linear, linearRhs, x, node1, node2, r);
+                report.append(String.format("  iteración %d: |dx| = %.3e, residuo = %.3e A%s%s%n", iteration,
+                    lastStep, residual, damping < 1 ? ", amortiguada" : "", limited ? ", limitada" : ""));
+                converged = !limited
+                    && lastStep <= NEWTON_VOLTAGE_TOL + NEWTON_RELATIVE_TOL * maxX
+                    && residual <= NEWTON_CURRENT_TOL + NEWTON_RELATIVE_TOL * maxAbs(linearRhs);
+            }
+            if(!converged)
+                throw new Exception("Newton-Raphson no convergió en " + MAX_NEWTON_ITERATIONS + " iteraciones.");
+
+            // La última factorización es la del iterado anterior. Para las sensibilidades y las
+            // resoluciones posteriores se vuelve a linealizar en la solución y se refactoriza.
+            for (int d=0; d<nl; d++){
+                vd[d] = valueAt(x, node1[d]) - valueAt(x, node2[d]);
+            }
+            linearize(linear, linearRhs, entries, signs, node1, node2, vd, J, b);
+            factors.load(J);
+            if(factors.refactor()) {
+                refactorizations++;
+            } else {
+                factors = factors.reanalyze(J);
+                fullFactorizations++;
+                if(!factors.refactor())
+                    throw new Exception("El sistema presenta singularidad o está mal condicionado.");
+            }
+
+            convergenceReport = String.format("Newton-Raphson: convergió en %d iteraciones "
+                    + "(%d factorizaciones completas, %d refactorizaciones numéricas, %d entradas en L+U)%n",
+                    iteration, fullFactorizations, refactorizations, factors.patternSize()) + report;
+            // La matriz se muestra sólo en sistemas chicos; en los demás no se arma en forma densa.
+            matrixNote = null;
+            lu = factors;
+            matrix = (n <= MAX_DISPLAY_EQUATIONS) ? factors.toDense(J) : null;
+            if(matrix == null)
+                matrixNote = "(Sistema de " + n + " ecuaciones resuelto con LU dispersa; la matriz sólo se muestra hasta "
+                        + MAX_DISPLAY_EQUATIONS + " ecuaciones)";
+            band = null;
+            rhs = b;
+            return x;
+        }
+
+        // Arma J = parte lineal + conductancias de los elementos no lineales en vd (por entradas), y el
+        // lado derecho b con sus fuentes de corriente equivalentes.
+        private void linearize(double[] linear, double[] linearRhs, int[][] entries, double[][] signs,
+                               int[] node1, int[] node2, double[] vd, double[] J, double[] b) {
+            System.arraycopy(linear, 0, J, 0, linear.length);
+            System.arraycopy(linearRhs, 0, b, 0, b.length);
+            for (int d=0; d<vd.length; d++){
+                NonlinearElement ne = nonlinearElements.get(d);
+                double g = ne.conductance(vd[d]);
+                double ieq = ne.current(vd[d]) - g * vd[d];
+                for (int t=0; t<entries[d].length; t++){
+                    J[entries[d][t]] += signs[d][t] * (g + GMIN);
+                }
+                if(node1[d] >= 0) b[node1[d]] -= ieq;
+                if(node2[d] >= 0) b[node2[d]] += ieq;
+            }
+        }
+
+        // Norma infinito del error de KCL (y de las ecuaciones de las fuentes) con las corrientes exactas
+        // de los elementos no lineales en la solución x; la parte lineal se multiplica por sus entradas.
+        private double kclResidual(SparseFactorization f, double[] linear, double[] linearRhs, double[] x,
+                                   int[] node1, int[] node2, double[] r) {
+            f.multiply(linear, x, r);
+            for (int i=0; i<r.length; i++){
+                r[i] -= linearRhs[i];
+            }
+            for (int d=0; d<node1.length; d++){
+                double v = valueAt(x, node1[d]) - valueAt(x, node2[d]);
+                double current = nonlinearElements.get(d).current(v) + GMIN * v;
+                if(node1[d] >= 0) r[node1[d]] += current;
+                if(node2[d] >= 0) r[node2[d]] -= current;
+            }
+            return maxAbs(r);
+        }
+
+        private static double maxAbs(double[] v) {
+            double max = 0;
+            for (double value : v) max = Math.max(max, Math.abs(value));
+            return max;
+        }
+
+        /**
+         * Reemplaza un elemento del análisis por otro del mismo tipo y entre los mismos nodos pero con
+         * otro valor, sin rearmar el sistema: para un resistor se suma a la matriz sólo la diferencia de
+         * conductancia y la factorización se corrige con una actualización de rango 1 (Sherman-Morrison);
+         * para las fuentes basta con el lado derecho. Tras MAX_RANK_ONE_UPDATES cambios, o si la
+         * actualización resulta inestable, resolve() vuelve a factorizar la matriz corregida.
+         * Devuelve true si cambió la matriz.
+         */
+        public boolean replaceElement(CircuitElement old, CircuitElement replacement) {
+            boolean matrixChanged = false;
+            if(old instanceof Resistor) {
+                double dg = 1.0 / replacement.value - 1.0 / ((Resistor) old).resistance;
+                int i = indexOf(old.node1);
+                int j = indexOf(old.node2);
+                // El sistema armado se mantiene al día para la próxima refactorización
+                MatrixStamp stamp = (matrix != null) ? (row, col, value) -> matrix[row][col] += value : band::add;
+                stampConductance(stamp, i, j, dg);
+                if(!matrixDirty) {
+                    if(!(lu instanceof RankOneUpdates)) lu = new RankOneUpdates(lu, rhs.length, MAX_RANK_ONE_UPDATES);
+                    if(!((RankOneUpdates) lu).add(i, j, dg)) matrixDirty = true;
+                }
+                matrixChanged = true;
+            }
+            int index = elementIndex.remove(old);
+            elements.set(index, replacement);
+            elementIndex.put(replacement, index);
+            Integer typed = typedIndex.remove(old);
+            if(typed != null) typedIndex.put(replacement, typed);
+            if(old instanceof VoltageSource)
+                voltageSources.set(typed, (VoltageSource) replacement);
+            if(old instanceof CurrentSource)
+                currentSources.set(typed, (CurrentSource) replacement);
+            if(old instanceof Inductor)
+                inductors.set(typed, (Inductor) replacement);
+            return matrixChanged;
+        }
+
+        // Indica si el último resolve() tuvo que volver a factorizar la matriz.
+        boolean wasRefactored() {
+            return refactored;
+        }
+
+        // Indica si el elemento (el mismo objeto) forma parte de este análisis.
+        boolean contains(CircuitElement ce) {
+            return elementIndex.containsKey(ce);
+        }
+
+        // Vuelve a resolver tras replaceElement(): sólo se refactoriza si las actualizaciones de rango 1
+        // no alcanzaron, y el lado derecho se rearma a partir de las fuentes.
+        public void resolve() throws Exception {
+            int nEquations = rhs.length;
+            refactored = matrixDirty;
+            if(matrixDirty) {
+                lu = (matrix != null) ? LUFactorization.factor(matrix) : BandedLU.factor(band);
+                matrixDirty = false;
+            }
+            Arrays.fill(rhs, 0);
+            stampSystem(nEquations, (row, col, value) -> {
+                if(col == nEquations) rhs[row] += value;
+            });
+            storeSolution(lu.solve(rhs));
+        }
+
+        /**
+         * Agrega al sistema la contribución ("estampa") de cada elemento.
+         * Las filas 0..nNodes-1 son las ecuaciones de KCL de los nodos (excepto tierra) y las
+         * siguientes las de cada fuente de voltaje. La columna nEquations corresponde al vector b.
+         */
+        private void stampSystem(int nEquations, MatrixStamp stamp) {
+            for(CircuitElement ce : elements) {
+                int i = indexOf(ce.node1);
+                int j = indexOf(ce.node2);
+                if(ce instanceof Resistor) {
+                    // Para resistores: se suman las conductancias
+                    stampConductance(stamp, i, j, 1.0 / ((Resistor) ce).resistance);
+                } else if(ce instanceof CurrentSource) {
+                    // Fuentes de corriente: inyecciones o extracciones de corriente
+                    double current = ((CurrentSource) ce).current;
+                    if(i >= 0) stamp.add(i, nEquations, -current); // corriente que sale
+                    if(j >= 0) stamp.add(j, nEquations, current);  // corriente que entra
+                }
+            }
+            // Ecuaciones para cada fuente de voltaje: V(node1) - V(node2) = vs.voltage
+            for (int k=0; k<voltageSources.size(); k++) {
+                VoltageSource vs = voltageSources.get(k);
+                int eq = nNodes + k;
+                int i = indexOf(vs.node1);
+                int j = indexOf(vs.node2);
+                if(i >= 0) {
+                    stamp.add(i, eq, 1);
+                    stamp.add(eq, i, 1);
+                }
+                if(j >= 0) {
+                    stamp.add(j, eq, -1);
+                    stamp.add(eq, j, -1);
+                }
+                stamp.add(eq, nEquations, vs.voltage);
+            }
+            // Inductores en DC: V(node1) - V(node2) = 0, con su corriente como incógnita.
+            // El análisis transitorio agrega en la diagonal el término del modelo equivalente.
+            for (int k=0; k<inductors.size(); k++) {
+                Inductor ind = inductors.get(k);
+                int eq = inductorRow(k);
+                int i = indexOf(ind.node1);
+                int j = indexOf(ind.node2);
+                if(i >= 0) {
+                    stamp.add(i, eq, 1);
+                    stamp.add(eq, i, 1);
+                }
+                if(j >= 0) {
+                    stamp.add(j, eq, -1);
+                    stamp.add(eq, j, -1);
+                }
+            }
+        }
+
+        /**
+         * Estampas de pequeña señal para el análisis AC, A(ω) = G + jωB. En conductive va G: la parte
+         * resistiva de stampSystem (con las fuentes como fasores en la columna nEquations) más la
+         * conductancia de cada elemento no lineal en el punto de operación ya calculado. En reactive va
+         * B, por unidad de ω: la capacidad C de cada capacitor y -L en la ecuación de cada inductor
+         * (V1 - V2 - jωL·I = 0).
+         */
+        void stampSmallSignal(int nEquations, MatrixStamp conductive, MatrixStamp reactive) {
+            stampSystem(nEquations, conductive);
+            for(NonlinearElement ne : nonlinearElements) {
+                int i = indexOf(ne.node1);
+                int j = indexOf(ne.node2);
+                double v = valueAt(solution, i) - valueAt(solution, j);
+                stampConductance(conductive, i, j, ne.conductance(v) + GMIN);
+            }
+            for(CircuitElement ce : elements) {
+                if(ce instanceof Capacitor)
+                    stampConductance(reactive, indexOf(ce.node1), indexOf(ce.node2), ((Capacitor) ce).capacitance);
+            }
+            for (int k=0; k<inductors.size(); k++) {
+                reactive.add(inductorRow(k), inductorRow(k), -inductors.get(k).inductance);
+            }
+        }
+
+        // Estampa de una conductancia g entre las incógnitas i y j (-1 si el extremo es tierra).
+        private static void stampConductance(MatrixStamp stamp, int i, int j, double g) {
+            if(i >= 0) stamp.add(i, i, g);
+            if(j >= 0) stamp.add(j, j, g);
+            if(i >= 0 && j >= 0) {
+                stamp.add(i, j, -g);
+                stamp.add(j, i, -g);
+            }
+        }
+
+        // Sensibilidades de la tensión del nodo indicado (id del análisis, ya fusionado) respecto de cada elemento.
+        public ArrayList<Sensitivity> sensitivitiesOfNodeVoltage(int nodeId) throws Exception {
+            double[] c = new double[solution.length];
+            Integer pos = nodeIndex.get(nodeId);
+            if(pos != null) c[pos] = 1;
+            return adjointSensitivities(c, null, 0);
+        }
+
+        // Sensibilidades de la corriente de un resistor (de node1 a node2) o de la incógnita de corriente
+        // de una fuente de voltaje, respecto de cada elemento.
+        public ArrayList<Sensitivity> sensitivitiesOfElementCurrent(CircuitElement ce) throws Exception {
+            double[] c = new double[solution.length];
+            if(ce instanceof Resistor) {
+                double r = ((Resistor) ce).resistance;
+                int i = indexOf(ce.node1);
+                int j = indexOf(ce.node2);
+                if(i >= 0) c[i] += 1.0 / r;
+                if(j >= 0) c[j] -= 1.0 / r;
+                // I = (V1 - V2) / R también depende de R en forma directa
+                double vdrop = valueAt(solution, i) - valueAt(solution, j);
+                return adjointSensitivities(c, ce, -vdrop / (r * r));
+            } else if(ce instanceof VoltageSource) {
+                c[nNodes + voltageSources.indexOf(ce)] = 1;
+                return adjointSensitivities(c, null, 0);
+            }
+            throw new Exception("Sólo se puede analizar la corriente de un resistor o de una fuente de voltaje.");
+        }
+
+        /**
+         * Método adjunto: para la salida y = c^T x se resuelve A^T λ = c con la factorización ya
+         * calculada, y la derivada respecto de cada parámetro p es dy/dp = λ^T (db/dp - dA/dp x).
+         * Así todas las sensibilidades cuestan una sola sustitución adicional.
+         */
+        private ArrayList<Sensitivity> adjointSensitivities(double[] c, CircuitElement directElement, double directTerm) throws Exception {
+            if(lu == null)
+                throw new Exception("El análisis de sensibilidad requiere resolver antes el circuito.");
+            double[] lambda = lu.solveTranspose(c);
+            ArrayList<Sensitivity> result = new ArrayList<>();
+            for(CircuitElement ce : elements) {
+                int i = indexOf(ce.node1);
+                int j = indexOf(ce.node2);
+                if(ce instanceof Resistor) {
+                    double r = ((Resistor) ce).resistance;
+                    double d = (valueAt(lambda, i) - valueAt(lambda, j))
+                             * (valueAt(solution, i) - valueAt(solution, j)) / (r * r);
+                    if(ce == directElement) d += directTerm;
+                    result.add(new Sensitivity(ce, d));
+                } else if(ce instanceof CurrentSource) {
+                    result.add(new Sensitivity(ce, valueAt(lambda, j) - valueAt(lambda, i)));
+                }
+            }
+            for (int k=0; k<voltageSources.size(); k++) {
+                result.add(new Sensitivity(voltageSources.get(k), lambda[nNodes + k]));
+            }
+            return result;
+        }
+
+        private static double valueAt(double[] v, int i) {
+            return i < 0 ? 0 : v[i];
+        }
+
+        // Índice de la incógnita de tensión de un nodo, o -1 si es tierra (o no pertenece al análisis).
+        private int indexOf(Node n) {
+            Integer pos = nodeIndex.get(representative.getOrDefault(n.id, n.id));
+            return pos == null ? -1 : pos;
+        }
+
+        // Fuerza (o no) el almacenamiento fuera del heap aun por debajo de OFF_HEAP_THRESHOLD, y elige el
+        // directorio del archivo temporal (null = directorio temporal del sistema).
+        public void setOffHeapStorage(boolean enabled, File scratchDirectory) {
+            this.offHeapStorage = enabled;
+            this.scratchDirectory = scratchDirectory;
+        }
+
+        public HashMap<Integer, Double> getNodeVoltages() {
+            return nodeVoltages;
+        }
+        
+        // Método para retornar la cadena que representa la matriz aumentada. Se arma en el momento a
+        // partir del sistema conservado, y sólo si no supera MAX_DISPLAY_EQUATIONS ecuaciones.
+        public String getAugmentedMatrixString() {
+            if(matrixNote != null || matrix == null) return matrixNote;
+            if(rhs.length > MAX_DISPLAY_EQUATIONS)
+                return "(Sistema de " + rhs.length + " ecuaciones; la matriz sólo se muestra hasta "
+                        + MAX_DISPLAY_EQUATIONS + " ecuaciones)";
+            return matrixToString(matrix, rhs);
+        }
+
+        // Método que convierte la matriz aumentada [A | b] a una cadena de texto para visualización.
+        private static String matrixToString(double[][] A, double[] b) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < A.length; i++) {
+                for (int j = 0; j < A[i].length; j++) {
+                    sb.append(String.format("%10.4f ", A[i][j]));
+                }
+                sb.append(String.format("%10.4f ", b[i]));
+                sb.append("\n");
+            }
+            return sb.toString();
+        }
+        
+        // Método de eliminación gaussiana para resolver el sistema lineal.
+        // Se conserva la factorización LU para poder volver a resolver con otro lado derecho.
+        private double[] gaussianElimination(double[][] A, double[] b) throws Exception {
+            lu = LUFactorization.factor(A);
+            return lu.solve(b);
+        }
+    }
+
+    // Sistema lineal factorizado que se puede volver a resolver con otros lados derechos.
+    interface Factorization {
+        void solveInto(double[] b, double[] x);
+        double[] solveTranspose(double[] c);
+        default double[] solve(double[] b) {
+            double[] x = new double[b.length];
+            solveInto(b, x);
+            return x;
+        }
+    }
+
+    /**
+     * Factorización LU con pivoteo parcial (PA = LU) de una matriz densa.
+     * L tiene diagonal unitaria y se guarda junto con U en la misma matriz.
+     */
+    static class LUFactorization implements Factorization {
+        final int n;
+        private final double[][] lu;
+        private final int[] perm;
+
+        private LUFactorization(double[][] lu, int[] perm) {
+            this.n = lu.length;
+            this.lu = lu;
+            this.perm = perm;
+        }
+
+        // Factoriza una copia de A (A no se modifica).
+        static LUFactorization factor(double[][] A) throws Exception {
+            int n = A.length;
+            double[][] lu = new double[n][];
+            int[] perm = new int[n];
+            for (int i=0; i<n; i++){
+                lu[i] = A[i].clone();
+                perm[i] = i;
+            }
+            for (int i=0; i<n; i++){
+                int maxRow = i;
+                for (int k=i+1; k<n; k++){
+                    if (Math.abs(lu[k][i]) > Math.abs(lu[maxRow][i])) {
+                        maxRow = k;
+                    }
+                }
+                double[] temp = lu[i];
+                lu[i] = lu[maxRow];
+                lu[maxRow] = temp;
+                int tp = perm[i];
+                perm[i] = perm[maxRow];
+                perm[maxRow] = tp;
+
+                if(Math.abs(lu[i][i]) < 1e-12)
+                    throw new Exception("El sistema presenta singularidad o está mal condicionado.");
+
+                double[] pivotRow = lu[i];
+                for (int k=i+1; k<n; k++){
+                    double[] row = lu[k];
+                    if (row[i] == 0) continue;
+                    double factor = row[i] / pivotRow[i];
+                    row[i] = factor;
+                    for (int j=i+1; j<n; j++){
+                        row[j] -= factor * pivotRow[j];
+                    }
+                }
+            }
+            return new LUFactorization(lu, perm);
+        }
+
+        // Resuelve A^T x = c: con PA = LU se resuelve U^T z = c, luego L^T w = z, y x = P^T w.
+        @Override
+        public double[] solveTranspose(double[] c) {
+            double[] z = c.clone();
+            for (int j=0; j<n; j++){
+                double[] row = lu[j];
+                z[j] /= row[j];
+                for (int i=j+1; i<n; i++){
+                    z[i] -= row[i] * z[j];
+                }
+            }
+            for (int j=n-1; j>=0; j--){
+                double[] row = lu[j];
+                for (int i=0; i<j; i++){
+                    z[i] -= row[i] * z[j];
+                }
+            }
+            double[] x = new double[n];
+            for (int i=0; i<n; i++){
+                x[perm[i]] = z[i];
+            }
+            return x;
+        }
+
+        // Resuelve A x = b por sustitución hacia adelante y hacia atrás, escribiendo en x
+        // (así no se reserva memoria en cada paso de tiempo).
+        @Override
+        public void solveInto(double[] b, double[] x) {
+            for (int i=0; i<n; i++){
+                double sum = b[perm[i]];
+                double[] row = lu[i];
+                for (int j=0; j<i; j++){
+                    sum -= row[j] * x[j];
+                }
+                x[i] = sum;
+            }
+            for (int i=n-1; i>=0; i--){
+                double sum = x[i];
+                double[] row = lu[i];
+                for (int j=i+1; j<n; j++){
+                    sum -= row[j] * x[j];
+                }
+                x[i] = sum / row[i];
+            }
+        }
+    }
+
+    /**
+     * Matriz en banda con las incógnitas reordenadas por Reverse Cuthill-McKee. Las filas y columnas
+     * se indican en la numeración original; internamente se guarda la fila p (ya reordenada) con las
+     * columnas p-kl .. p+kl+ku, espacio suficiente para el relleno del pivoteo parcial.
+     */
+    static class BandMatrix {
+        final int n;
+        final int bandwidth;
+        final int naturalBandwidth;
+        // order[p] = incógnita original en la posición p; position es la inversa
+        final int[] order;
+        final int[] position;
+        final double[][] rows;
+
+        private BandMatrix(int n, int[] order, int bandwidth, int naturalBandwidth) {
+            this.n = n;
+            this.order = order;
+            this.bandwidth = bandwidth;
+            this.naturalBandwidth = naturalBandwidth;
+            position = new int[n];
+            for (int p=0; p<n; p++) position[order[p]] = p;
+            rows = new double[n][3 * bandwidth + 1];
+        }
+
+        /**
+         * Calcula el patrón del sistema del solver, lo reordena con RCM y devuelve una matriz en banda
+         * vacía si el ancho de banda resultante es chico (la banda ocupa a lo sumo un cuarto de una
+         * fila densa); si no, devuelve null para usar el solver denso.
+         */
+        static BandMatrix forSystem(CircuitSolver solver, int n) {
+            return forPattern(n, stamp -> solver.stampSystem(n, stamp));
+        }
+
+        // Igual que forSystem, con el patrón de las estampas que hace pattern (las de la columna n,
+        // el lado derecho, no cuentan). Sirve para sistemas con estampas propias, como el transitorio.
+        static BandMatrix forPattern(int n, Consumer<MatrixStamp> pattern) {
+            // Patrón simétrico de la matriz como listas de adyacencia
+            int[] degree = new int[n];
+            ArrayList<int[]> edges = new ArrayList<>();
+            pattern.accept((row, col, value) -> {
+                if(col < n && row != col) edges.add(new int[]{row, col});
+            });
+            for (int[] e : edges) {
+                degree[e[0]]++;
+                degree[e[1]]++;
+            }
+            int[][] adjacency = new int[n][];
+            for (int i=0; i<n; i++) adjacency[i] = new int[degree[i]];
+            int[] fill = new int[n];
+            for (int[] e : edges) {
+                adjacency[e[0]][fill[e[0]]++] = e[1];
+                adjacency[e[1]][fill[e[1]]++] = e[0];
+            }
+            for (int i=0; i<n; i++) {
+                int[] a = adjacency[i];
+                Arrays.sort(a);
+                int count = 0;
+                for (int k=0; k<a.length; k++) {
+                    if (count == 0 || a[k] != a[count-1]) a[count++] = a[k];
+                }
+                adjacency[i] = Arrays.copyOf(a, count);
+            }
+
+            int[] natural = new int[n];
+            for (int i=0; i<n; i++) natural[i] = i;
+            int naturalBandwidth = bandwidth(adjacency, natural);
+            int[] order = reverseCuthillMcKee(adjacency);
+            int bw = bandwidth(adjacency, order);
+            if (bw > naturalBandwidth) {
+                order = natural;
+                bw = naturalBandwidth;
+            }
+            if ((3 * bw + 1) * 4 > n) return null;
+            return new BandMatrix(n, order, bw, naturalBandwidth);
+        }
+
+        // Ancho de banda (máximo |p(i) - p(j)| entre entradas no nulas) con el orden dado.
+        private static int bandwidth(int[][] adjacency, int[] order) {
+            int n = order.length;
+            int[] pos = new int[n];
+            for (int p=0; p<n; p++) pos[order[p]] = p;
+            int bw = 0;
+            for (int i=0; i<n; i++) {
+                for (int j : adjacency[i]) bw = Math.max(bw, Math.abs(pos[i] - pos[j]));
+            }
+            return bw;
+        }
+
+        /**
+         * Orden Reverse Cuthill-McKee: recorrido en anchura desde un nodo pseudo-periférico de cada
+         * componente, visitando los vecinos de menor grado primero, y luego invertido.
+         */
+        static int[] reverseCuthillMcKee(int[][] adjacency) {
+            int n = adjacency.length;
+            int[] order = new int[n];
+            boolean[] visited = new boolean[n];
+            int count = 0;
+            for (int seed=0; seed<n; seed++) {
+                if (visited[seed]) continue;
+                int start = pseudoPeripheral(adjacency, seed);
+                visited[start] = true;
+                order[count++] = start;
+                for (int head = count - 1; head < count; head++) {
+                    int v = order[head];
+                    int first = count;
+                    for (int w : adjacency[v]) {
+                        if (!visited[w]) {
+                            visited[w] = true;
+                            order[count++] = w;
+                        }
+                    }
+                    // Vecinos recién agregados, de menor a mayor grado (inserción: son pocos)
+                    for (int a = first + 1; a < count; a++) {
+                        int w = order[a];
+                        int b = a - 1;
+                        while (b >= first && adjacency[order[b]].length > adjacency[w].length) {
+                            order[b + 1] = order[b];
+                            b--;
+                        }
+                        order[b + 1] = w;
+                    }
+                }
+            }
+            for (int i=0, j=n-1; i<j; i++, j--) {
+                int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+            }
+            return order;
+        }
+
+        // Nodo de excentricidad (casi) máxima en la componente de seed: se repite el recorrido en
+        // anchura desde el nodo de menor grado del último nivel mientras la profundidad crezca.
+        private static int pseudoPeripheral(int[][] adjacency, int seed) {
+            int n = adjacency.length;
+            int[] level = new int[n];
+            int[] queue = new int[n];
+            int node = seed;
+            int depth = -1;
+            for (int iter=0; iter<8; iter++) {
+                Arrays.fill(level, -1);
+                int head = 0, tail = 0;
+                queue[tail++] = node;
+                level[node] = 0;
+                int last = node;
+                while (head < tail) {
+                    int v = queue[head++];
+                    for (int w : adjacency[v]) {
+                        if (level[w] < 0) {
+                            level[w] = level[v] + 1;
+                            queue[tail++] = w;
+                        }
+                    }
+                    last = v;
+                }
+                int maxLevel = level[last];
+                if (maxLevel <= depth) break;
+                depth = maxLevel;
+                int best = last;
+                for (int k = tail - 1; k >= 0 && level[queue[k]] == maxLevel; k--) {
+                    if (adjacency[queue[k]].length < adjacency[best].length) best = queue[k];
+                }
+                node = best;
+            }
+            return node;
+        }
+
+        // Suma value en (row, col), en la numeración original de incógnitas.
+        void add(int row, int col, double value) {
+            int p = position[row];
+            int q = position[col];
+            rows[p][q - p + bandwidth] += value;
+        }
+    }
+
+    /**
+     * LU con pivoteo parcial de una matriz en banda, al estilo de LAPACK (gbtrf/gbtrs): U ocupa las
+     * columnas p .. p+kl+ku de cada fila y los multiplicadores de L se guardan por paso junto con el
+     * intercambio de filas de ese paso. El costo es O(n·b²) en lugar de O(n³).
+     */
+    static class BandedLU implements Factorization {
+        private final int n, kl, ku;
+        private final int[] order;
+        private final double[][] rows;
+        private final double[][] lower;
+        private final int[] pivots;
+        // Vector de trabajo de solveInto (no se reserva memoria en cada paso de tiempo). Por eso una
+        // misma factorización no se debe usar desde varios hilos a la vez.
+        private final double[] work;
+
+        private BandedLU(BandMatrix A) {
+            n = A.n;
+            kl = A.bandwidth;
+            ku = A.bandwidth;
+            order = A.order;
+            rows = new double[n][];
+            for (int p=0; p<n; p++) rows[p] = A.rows[p].clone();
+            lower = new double[n][];
+            pivots = new int[n];
+            work = new double[n];
+        }
+
+        // Factoriza una copia de A (A no se modifica).
+        static BandedLU factor(BandMatrix A) throws Exception {
+            BandedLU f = new BandedLU(A);
+            f.factorInPlace();
+            return f;
+        }
+
+        // Entrada (p, q) en posiciones reordenadas; q debe estar en p-kl .. p+kl+ku.
+        private double get(int p, int q) {
+            return rows[p][q - p + kl];
+        }
+
+        private void factorInPlace() throws Exception {
+            for (int i=0; i<n; i++) {
+                int lastRow = Math.min(n - 1, i + kl);
+                int lastCol = Math.min(n - 1, i + kl + ku);
+                int maxRow = i;
+                for (int k=i+1; k<=lastRow; k++) {
+                    if (Math.abs(get(k, i)) > Math.abs(get(maxRow, i))) maxRow = k;
+                }
+                pivots[i] = maxRow;
+                if (maxRow != i) {
+                    double[] ri = rows[i];
+                    double[] rk = rows[maxRow];
+                    for (int j=i; j<=lastCol; j++) {
+                        double t = ri[j - i + kl];
+                        ri[j - i + kl] = rk[j - maxRow + kl];
+                        rk[j - maxRow + kl] = t;
+                    }
+                }
+                double pivot = get(i, i);
+                if (Math.abs(pivot) < 1e-12)
+                    throw new Exception("El sistema presenta singularidad o está mal condicionado.");
+                double[] pivotRow = rows[i];
+                double[] multipliers = new double[lastRow - i];
+                for (int k=i+1; k<=lastRow; k++) {
+                    double[] row = rows[k];
+                    double factor = row[i - k + kl] / pivot;
+                    multipliers[k - i - 1] = factor;
+                    if (factor == 0) continue;
+                    row[i - k + kl] = 0;
+                    for (int j=i+1; j<=lastCol; j++) {
+                        row[j - k + kl] -= factor * pivotRow[j - i + kl];
+                    }
+                }
+                lower[i] = multipliers;
+            }
+        }
+
+        @Override
+        public void solveInto(double[] b, double[] x) {
+            double[] y = work;
+            for (int p=0; p<n; p++) y[p] = b[order[p]];
+            for (int i=0; i<n; i++) {
+                int piv = pivots[i];
+                if (piv != i) {
+                    double t = y[i];
+                    y[i] = y[piv];
+                    y[piv] = t;
+                }
+                double yi = y[i];
+                double[] m = lower[i];
+                for (int t=0; t<m.length; t++) y[i + 1 + t] -= m[t] * yi;
+            }
+            backSubstitute(y);
+            for (int p=0; p<n; p++) x[order[p]] = y[p];
+        }
+
+        private void backSubstitute(double[] y) {
+            for (int i=n-1; i>=0; i--) {
+                double[] row = rows[i];
+                int lastCol = Math.min(n - 1, i + kl + ku);
+                double sum = y[i];
+                for (int j=i+1; j<=lastCol; j++) sum -= row[j - i + kl] * y[j];
+                y[i] = sum / row[kl];
+            }
+        }
+
+        // Resuelve A^T x = c: U^T z = c y luego los pasos de L transpuestos en orden inverso.
+        @Override
+        public double[] solveTranspose(double[] c) {
+            double[] z = new double[n];
+            for (int p=0; p<n; p++) z[p] = c[order[p]];
+            for (int i=0; i<n; i++) {
+                double[] row = rows[i];
+                z[i] /= row[kl];
+                int lastCol = Math.min(n - 1, i + kl + ku);
+                for (int j=i+1; j<=lastCol; j++) z[j] -= row[j - i + kl] * z[i];
+            }
+            for (int i=n-1; i>=0; i--) {
+                double[] m = lower[i];
+                double sum = z[i];
+                for (int t=0; t<m.length; t++) sum -= m[t] * z[i + 1 + t];
+                z[i] = sum;
+                int piv = pivots[i];
+                if (piv != i) {
+                    double t = z[i];
+                    z[i] = z[piv];
+                    z[piv] = t;
+                }
+            }
+            double[] x = new double[n];
+            for (int p=0; p<n; p++) x[order[p]] = z[p];
+            return x;
+        }
+    }
+
+    /**
+     * Factorización de A + Σ g_k u_k u_k^T a partir de la de A, con u_k = e_i - e_j (el cambio g_k de
+     * una conductancia entre las incógnitas i y j). Por la fórmula de Sherman-Morrison, cada cambio cuesta
+     * dos sustituciones con la factorización anterior (z = A^-1 u y z' = A^-T u) en lugar de una
+     * factorización nueva, y cada solución suma O(n) por cambio acumulado.
+     */
+    static class RankOneUpdates implements Factorization {
+        // Por debajo de este valor de 1 + g·u^T A^-1 u la matriz corregida es casi singular y conviene refactorizar.
+        static final double MIN_DENOMINATOR = 1e-8;
+
+        private final Factorization base;
+        private final int n;
+        private final int[] node1, node2;
+        private final double[] alpha;
+        private final double[][] z, zt;
+        private int count = 0;
+
+        RankOneUpdates(Factorization base, int n, int maxUpdates) {
+            this.base = base;
+            this.n = n;
+            node1 = new int[maxUpdates];
+            node2 = new int[maxUpdates];
+            alpha = new double[maxUpdates];
+            z = new double[maxUpdates][];
+            zt = new double[maxUpdates][];
+        }
+
+        // Agrega el cambio g entre i y j (-1 = tierra). Devuelve false si no queda lugar o si el cambio
+        // es numéricamente inestable; en ese caso hay que factorizar la matriz corregida.
+        boolean add(int i, int j, double g) {
+            if (count == alpha.length) return false;
+            double[] u = new double[n];
+            if (i >= 0) u[i] = 1;
+            if (j >= 0) u[j] = -1;
+            double[] zk = solve(u);
+            double denominator = 1 + g * (valueAt(zk, i) - valueAt(zk, j));
+            if (!(Math.abs(denominator) > MIN_DENOMINATOR)) return false;
+            zt[count] = solveTranspose(u);
+            z[count] = zk;
+            node1[count] = i;
+            node2[count] = j;
+            alpha[count] = g / denominator;
+            count++;
+            return true;
+        }
+
+        @Override
+        public void solveInto(double[] b, double[] x) {
+            base.solveInto(b, x);
+            for (int k=0; k<count; k++) {
+                double s = alpha[k] * (valueAt(x, node1[k]) - valueAt(x, node2[k]));
+                double[] zk = z[k];
+                for (int t=0; t<n; t++) x[t] -= s * zk[t];
+            }
+        }
+
+        @Override
+        public double[] solveTranspose(double[] c) {
+            double[] y = base.solveTranspose(c);
+            for (int k=0; k<count; k++) {
+                double s = alpha[k] * (valueAt(y, node1[k]) - valueAt(y, node2[k]));
+                double[] zk = zt[k];
+                for (int t=0; t<n; t++) y[t] -= s * zk[t];
+            }
+            return y;
+        }
+
+        private static double valueAt(double[] v, int i) {
+            return i < 0 ? 0 : v[i];
+        }
+    }
+
+    /**
+     * Análisis transitorio con paso fijo. Capacitores e inductores se reemplazan por su modelo
+     * equivalente (Euler hacia atrás o trapezoidal): un término fijo en la matriz más una fuente que
+     * depende del paso anterior. Como el paso es fijo la matriz no cambia: se factoriza una sola vez
+     * y en cada paso sólo se rearma el lado derecho y se sustituye. Como en el punto de operación, los
+     * sistemas de BANDED_MIN_EQUATIONS ecuaciones o más con banda angosta tras RCM (el patrón incluye
+     * las estampas de los capacitores) se factorizan en banda, sin armar la matriz densa.
+     * Condiciones iniciales nulas: en t=0 los capacitores están descargados y los inductores sin corriente.
+     */
+    static class TransientAnalysis {
+        private final CircuitSolver solver;
+        private final boolean trapezoidal;
+        private final int n;
+        private final Factorization lu;
+        // Lado derecho de las fuentes (constante) y lado derecho de cada paso
+        private final double[] sourceRhs;
+        private final double[] rhs;
+        private double[] x;
+        private double[] next;
+        private boolean started = false;
+        private final ArrayList<Capacitor> capacitors = new ArrayList<>();
+        private final int[] capNode1, capNode2;
+        private final double[] capConductance, capVoltage, capCurrent;
+        private final double[] indResistance, indVoltage;
+        private final int[] indNode1, indNode2;
+
+        TransientAnalysis(CircuitSolver solver, double step, boolean trapezoidal) throws Exception {
+            this.solver = solver;
+            this.trapezoidal = trapezoidal;
+            if(!solver.nonlinearElements.isEmpty())
+                throw new Exception("El análisis transitorio no admite elementos no lineales.");
+            n = solver.buildIndex();
+            double k = trapezoidal ? 2.0 : 1.0;
+            for(CircuitElement ce : solver.elements) {
+                if(ce instanceof Capacitor) capacitors.add((Capacitor) ce);
+            }
+            int nc = capacitors.size();
+            capNode1 = new int[nc];
+            capNode2 = new int[nc];
+            capConductance = new double[nc];
+            capVoltage = new double[nc];
+            capCurrent = new double[nc];
+            for(int c=0; c<nc; c++) {
+                Capacitor cap = capacitors.get(c);
+                capNode1[c] = solver.indexOf(cap.node1);
+                capNode2[c] = solver.indexOf(cap.node2);
+                capConductance[c] = k * cap.capacitance / step;
+            }
+            BandMatrix band = null;
+            if(n >= CircuitSolver.BANDED_MIN_EQUATIONS) {
+                band = BandMatrix.forPattern(n, stamp -> {
+                    solver.stampSystem(n, stamp);
+                    for(int c=0; c<nc; c++) CircuitSolver.stampConductance(stamp, capNode1[c], capNode2[c], 1);
+                });
+            }
+            double[][] A = (band == null) ? new double[n][n] : null;
+            MatrixStamp stampA = (band != null) ? band::add : (row, col, value) -> A[row][col] += value;
+            sourceRhs = new double[n];
+            solver.stampSystem(n, (row, col, value) -> {
+                if(col == n) sourceRhs[row] += value;
+                else stampA.add(row, col, value);
+            });
+            for(int c=0; c<nc; c++) {
+                CircuitSolver.stampConductance(stampA, capNode1[c], capNode2[c], capConductance[c]);
+            }
+            int nl = solver.inductors.size();
+            indResistance = new double[nl];
+            indVoltage = new double[nl];
+            indNode1 = new int[nl];
+            indNode2 = new int[nl];
+            for(int l=0; l<nl; l++) {
+                Inductor ind = solver.inductors.get(l);
+                indNode1[l] = solver.indexOf(ind.node1);
+                indNode2[l] = solver.indexOf(ind.node2);
+                indResistance[l] = k * ind.inductance / step;
+                int row = solver.inductorRow(l);
+                stampA.add(row, row, -indResistance[l]);
+            }
+            lu = (band != null) ? BandedLU.factor(band) : LUFactorization.factor(A);
+            rhs = new double[n];
+            x = new double[n];
+            next = new double[n];
+        }
+
+        // Avanza un paso de tiempo.
+        void step() {
+            if(trapezoidal && !started) {
+                // Las condiciones iniciales no fijan la corriente de los capacitores ni la tensión de los
+                // inductores, y el método trapezoidal las necesita. El primer paso se da como dos medios
+                // pasos de Euler hacia atrás, que usan la misma matriz (C/(h/2) = 2C/h).
+                advance(false);
+                advance(false);
+            } else {
+                advance(trapezoidal);
+            }
+            started = true;
+        }
+
+        private void advance(boolean useTrapezoidal) {
+            System.arraycopy(sourceRhs, 0, rhs, 0, n);
+            // Capacitor: i = G·v - Ieq, con Ieq = G·v(anterior) (+ i(anterior) en el método trapezoidal)
+            for(int c=0; c<capacitors.size(); c++) {
+                double ieq = capConductance[c] * capVoltage[c] + (useTrapezoidal ? capCurrent[c] : 0);
+                if(capNode1[c] >= 0) rhs[capNode1[c]] += ieq;
+                if(capNode2[c] >= 0) rhs[capNode2[c]] -= ieq;
+            }
+            // Inductor: v - Req·i = -Req·i(anterior) (- v(anterior) en el método trapezoidal)
+            for(int l=0; l<indResistance.length; l++) {
+                int row = solver.inductorRow(l);
+                rhs[row] -= indResistance[l] * x[row] + (useTrapezoidal ? indVoltage[l] : 0);
+            }
+            lu.solveInto(rhs, next);
+            double[] prev = x;
+            x = next;
+            next = prev;
+            for(int c=0; c<capacitors.size(); c++) {
+                double v = voltage(capNode1[c]) - voltage(capNode2[c]);
+                double ieq = capConductance[c] * capVoltage[c] + (useTrapezoidal ? capCurrent[c] : 0);
+                capCurrent[c] = capConductance[c] * v - ieq;
+                capVoltage[c] = v;
+            }
+            for(int l=0; l<indVoltage.length; l++) {
+                indVoltage[l] = voltage(indNode1[l]) - voltage(indNode2[l]);
+            }
+        }
+
+        // Valor de la incógnita indicada en el paso actual (0 para tierra, índice -1).
+        double voltage(int index) {
+            return index < 0 ? 0 : x[index];
+        }
+    }
+
+    /**
+     * Corre el análisis transitorio del circuito y escribe las formas de onda en CSV
+     * (t, tensión de cada nodo y corriente de cada inductor) a medida que avanza, cada "every" pasos.
+     */
+    static void runTransient(List<Node> nodes, List<CircuitElement> elements, double step, long steps,
+                             boolean trapezoidal, int every, Writer out) throws Exception {
+        if(!(step > 0) || Double.isInfinite(step))
+            throw new Exception("El paso debe ser un número positivo (se indicó " + step + ").");
+        if(steps < 1)
+            throw new Exception("La cantidad de pasos debe ser al menos 1 (se indicó " + steps + ").");
+        if(every < 1)
+            throw new Exception("--cada debe ser al menos 1 (se indicó " + every + ").");
+        CircuitSolver solver = new CircuitSolver(nodes, elements);
+        TransientAnalysis analysis = new TransientAnalysis(solver, step, trapezoidal);
+
+        // Columnas: índice de la incógnita de cada nodo original y de cada inductor
+        HashMap<Integer, Integer> repIds = representativeIds(nodes, elements);
+        ArrayList<Integer> columns = new ArrayList<>();
+        StringBuilder header = new StringBuilder("t");
+        for(Node nd : nodes) {
+            if(nd.id == 0) continue;
+            Integer pos = solver.nodeIndex.get(repIds.get(nd.id));
+            columns.add(pos == null ? -1 : pos);
+            header.append(",V(N").append(nd.id).append(")");
+        }
+        for(CircuitElement ce : elements) {
+            if(ce instanceof Inductor) {
+                columns.add(solver.inductorRow(solver.inductors.indexOf(ce)));
+                header.append(",I(L N").append(ce.node1.id).append("-N").append(ce.node2.id).append(")");
+            }
+        }
+        int[] cols = columns.stream().mapToInt(Integer::intValue).toArray();
+        out.write(header.append('\n').toString());
+
+        StringBuilder line = new StringBuilder();
+        for(long s=1; s<=steps; s++) {
+            analysis.step();
+            if(s % every != 0 && s != steps) continue;
+            line.setLength(0);
+            line.append(s * step);
+            for(int col : cols) {
+                line.append(',').append(analysis.voltage(col));
+            }
+            out.write(line.append('\n').toString());
+        }
+        out.flush();
+    }
+
+    /**
+     * Patrón de una LU dispersa con pivoteo parcial por filas, para matrices guardadas por filas (en
+     * cols[r], las columnas de la fila r en orden creciente). analyze() hace la eliminación con valores de
+     * referencia sólo para elegir la fila de cada paso y obtener el patrón de L y U, incluido el relleno;
+     * la parte numérica la hace cada usuario sobre ese patrón (AcAnalysis en complejo, una frecuencia
+     * por vez; BatchSolver con muchas instancias a la par). En el paso k se elimina la fila rowOrder[k]:
+     * sus entradas de L están en las columnas lowerCols[k] (menores que k) y las de U en upperCols[k]
+     * (mayores que k), ambas crecientes. La memoria es proporcional a las entradas de L y U.
+     */
+    static final class SparseLU {
+        final int n;
+        final int[] rowOrder;
+        final int[][] lowerCols;
+        final int[][] upperCols;
+        final int[] lowerStart;
+        final int[] upperStart;
+        final int lowerSize;
+        final int upperSize;
+
+        private SparseLU(int[] rowOrder, int[][] lowerCols, int[][] upperCols) {
+            this.n = rowOrder.length;
+            this.rowOrder = rowOrder;
+            this.lowerCols = lowerCols;
+            this.upperCols = upperCols;
+            lowerStart = new int[n];
+            upperStart = new int[n];
+            int nl = 0, nu = 0;
+            for (int k=0; k<n; k++) {
+                lowerStart[k] = nl;
+                upperStart[k] = nu;
+                nl += lowerCols[k].length;
+                nu += upperCols[k].length;
+            }
+            lowerSize = nl;
+            upperSize = nu;
+        }
+
+        // Cantidad de lugares de slot(): entradas de L, luego de U y al final la diagonal.
+        int size() {
+            return lowerSize + upperSize + n;
+        }
+
+        // Lugar de la entrada del paso k en la columna q (-1 si no está en el patrón).
+        int slot(int k, int q) {
+            if (q == k) return lowerSize + upperSize + k;
+            int t;
+            if (q < k) {
+                t = Arrays.binarySearch(lowerCols[k], q);
+                return t < 0 ? -1 : lowerStart[k] + t;
+            }
+            t = Arrays.binarySearch(upperCols[k], q);
+            return t < 0 ? -1 : lowerSize + upperStart[k] + t;
+        }
+
+        // Orden Reverse Cuthill-McKee de las incógnitas según el patrón simétrico de las filas
+        // (rows.get(i): columnas con entrada en la fila i).
+        static int[] fillReducingOrder(List<? extends Collection<Integer>> rows) {
+            int n = rows.size();
+            ArrayList<HashSet<Integer>> neighbours = new ArrayList<>();
+            for (int i=0; i<n; i++) neighbours.add(new HashSet<>());
+            for (int i=0; i<n; i++) {
+                for (int j : rows.get(i)) {
+                    if (i == j) continue;
+                    neighbours.get(i).add(j);
+                    neighbours.get(j).add(i);
+                }
+            }
+            int[][] adjacency = new int[n][];
+            for (int i=0; i<n; i++) {
+                adjacency[i] = neighbours.get(i).stream().mapToInt(Integer::intValue).sorted().toArray();
+            }
+            return BandMatrix.reverseCuthillMcKee(adjacency);
+        }
+
+        /**
+         * Eliminación dispersa con pivoteo parcial sobre A = re + j·im (im puede ser null), sólo para
+         * elegir el orden de filas y obtener el patrón de L y U (los valores numéricos se descartan).
+         */
+        static SparseLU analyze(int[][] cols, double[][] re, double[][] im) throws Exception {
+            int n = cols.length;
+            ArrayList<HashMap<Integer, double[]>> rows = new ArrayList<>();
+            ArrayList<HashSet<Integer>> colRows = new ArrayList<>();
+            for (int p=0; p<n; p++) colRows.add(new HashSet<>());
+            for (int p=0; p<n; p++) {
+                HashMap<Integer, double[]> row = new HashMap<>();
+                for (int t=0; t<cols[p].length; t++) {
+                    row.put(cols[p][t], new double[]{re[p][t], im == null ? 0 : im[p][t]});
+                    colRows.get(cols[p][t]).add(p);
+                }
+                rows.add(row);
+            }
+            int[] rowOrder = new int[n];
+            int[][] upperCols = new int[n][];
+            ArrayList<ArrayList<Integer>> eliminatedAt = new ArrayList<>();
+            for (int p=0; p<n; p++) eliminatedAt.add(new ArrayList<>());
+            for (int i=0; i<n; i++) {
+                HashSet<Integer> candidates = colRows.get(i);
+                int pivotRow = -1;
+                double best = 0;
+                for (int r : candidates) {
+                    double[] v = rows.get(r).get(i);
+                    double mag = Math.hypot(v[0], v[1]);
+                    if (pivotRow < 0 || mag > best) {
+                        pivotRow = r;
+                        best = mag;
+                    }
+                }
+                if (pivotRow < 0 || best < 1e-300)
+                    throw new Exception("El sistema presenta singularidad o está mal condicionado.");
+                rowOrder[i] = pivotRow;
+                HashMap<Integer, double[]> pivot = rows.get(pivotRow);
+                double[] pv = pivot.get(i);
+                int step = i;
+                int[] upper = pivot.keySet().stream().mapToInt(Integer::intValue).filter(j -> j > step).sorted().toArray();
+                upperCols[i] = upper;
+                for (int j : upper) colRows.get(j).remove(pivotRow);
+                double den = pv[0] * pv[0] + pv[1] * pv[1];
+                for (int r : candidates) {
+                    if (r == pivotRow) continue;
+                    HashMap<Integer, double[]> row = rows.get(r);
+                    double[] v = row.remove(i);
+                    double fr = (v[0] * pv[0] + v[1] * pv[1]) / den;
+                    double fi = (v[1] * pv[0] - v[0] * pv[1]) / den;
+                    eliminatedAt.get(r).add(i);
+                    for (int j : upper) {
+                        double[] u = pivot.get(j);
+                        double[] target = row.get(j);
+                        if (target == null) {
+                            target = new double[2];
+                            row.put(j, target);
+                            colRows.get(j).add(r);
+                        }
+                        target[0] -= fr * u[0] - fi * u[1];
+                        target[1] -= fr * u[1] + fi * u[0];
+                    }
+                }
+                candidates.clear();
+                rows.set(pivotRow, null);
+            }
+            int[][] lowerCols = new int[n][];
+            for (int k=0; k<n; k++) {
+                lowerCols[k] = eliminatedAt.get(rowOrder[k]).stream().mapToInt(Integer::intValue).toArray();
+            }
+            return new SparseLU(rowOrder, lowerCols, upperCols);
+        }
+    }
+
+    /**
+     * LU dispersa real con patrón fijo, para sistemas que se vuelven a factorizar muchas veces con otros
+     * valores en las mismas posiciones (Newton-Raphson). Al crearla se reordenan las incógnitas con RCM
+     * y se elige el orden de filas con pivoteo parcial sobre los valores dados (SparseLU.analyze). Los
+     * valores del sistema se pasan como un arreglo de entradas (ver entry()), que no depende del orden
+     * de filas, y armar, refactorizar o multiplicar cuesta O(entradas de L + U) y no O(n²).
+     * Filas y columnas se indican en la numeración original.
+     */
+    static class SparseFactorization implements Factorization {
+        // Un pivote se acepta si es al menos esta fracción de las entradas de su columna que elimina
+        // (pivoteo por umbral, como en BatchSolver); si no, hay que volver a elegir el orden de filas.
+        static final double PIVOT_THRESHOLD = 1e-3;
+
+        final int n;
+        // order[q] = incógnita en la columna q; position es la inversa
+        private final int[] order;
+        private final int[] position;
+        // Entradas del sistema por fila original: las de la fila r van de rowStart[r] a rowStart[r+1]-1,
+        // con su columna reordenada (creciente) y su lugar en el patrón de L y U
+        private final int[] rowStart;
+        private final int[] entryCols;
+        private final int[] entrySlots;
+        private final SparseLU pattern;
+        // Factores en los lugares del patrón (L, U y al final la diagonal)
+        private final double[] lu;
+        private final int[] colSlot;
+        private final double[] work;
+
+        private SparseFactorization(int[] order, int[] rowStart, int[] entryCols, double[] entryValues) throws Exception {
+            n = order.length;
+            this.order = order;
+            position = new int[n];
+            for (int q=0; q<n; q++) position[order[q]] = q;
+            this.rowStart = rowStart;
+            this.entryCols = entryCols;
+            int[][] cols = new int[n][];
+            double[][] rowValues = new double[n][];
+            for (int r=0; r<n; r++) {
+                cols[r] = Arrays.copyOfRange(entryCols, rowStart[r], rowStart[r + 1]);
+                rowValues[r] = Arrays.copyOfRange(entryValues, rowStart[r], rowStart[r + 1]);
+            }
+            pattern = SparseLU.analyze(cols, rowValues, null);
+            int[] stepOf = new int[n];
+            for (int k=0; k<n; k++) stepOf[pattern.rowOrder[k]] = k;
+            entrySlots = new int[entryCols.length];
+            for (int r=0; r<n; r++) {
+                for (int e=rowStart[r]; e<rowStart[r + 1]; e++) entrySlots[e] = pattern.slot(stepOf[r], entryCols[e]);
+            }
+            lu = new double[pattern.size()];
+            colSlot = new int[n];
+            work = new double[n];
+            load(entryValues);
+        }
+
+        /**
+         * Analiza las estampas de system (las de la columna n, el lado derecho, no cuentan) y deja
+         * cargados esos valores, sin factorizar. Las posiciones que se quieran cargar después (por
+         * ejemplo las de los elementos no lineales) tienen que aparecer en system.
+         */
+        static SparseFactorization analyze(int n, Consumer<MatrixStamp> system) throws Exception {
+            ArrayList<HashMap<Integer, double[]>> rows = new ArrayList<>();
+            for (int i=0; i<n; i++) rows.add(new HashMap<>());
+            system.accept((row, col, value) -> {
+                if(col < n) rows.get(row).computeIfAbsent(col, c -> new double[1])[0] += value;
+            });
+            ArrayList<Set<Integer>> columnSets = new ArrayList<>();
+            for (HashMap<Integer, double[]> row : rows) columnSets.add(row.keySet());
+            int[] order = SparseLU.fillReducingOrder(columnSets);
+            int[] position = new int[n];
+            for (int q=0; q<n; q++) position[order[q]] = q;
+            int[] rowStart = new int[n + 1];
+            for (int r=0; r<n; r++) rowStart[r + 1] = rowStart[r] + rows.get(r).size();
+            int[] entryCols = new int[rowStart[n]];
+            double[] entryValues = new double[rowStart[n]];
+            for (int r=0; r<n; r++) {
+                HashMap<Integer, double[]> row = rows.get(r);
+                int e = rowStart[r];
+                for (int col : row.keySet()) entryCols[e++] = position[col];
+                Arrays.sort(entryCols, rowStart[r], rowStart[r + 1]);
+                for (e=rowStart[r]; e<rowStart[r + 1]; e++) entryValues[e] = row.get(order[entryCols[e]])[0];
+            }
+            return new SparseFactorization(order, rowStart, entryCols, entryValues);
+        }
+
+        // Mismas entradas, con el orden de filas elegido de nuevo con entryValues (cuando refactor()
+        // rechaza un pivote).
+        SparseFactorization reanalyze(double[] entryValues) throws Exception {
+            return new SparseFactorization(order, rowStart, entryCols, entryValues);
+        }
+
+        // Cantidad de entradas del sistema (largo de los arreglos de valores).
+        int entries() {
+            return entryCols.length;
+        }
+
+        // Índice de la entrada (row, col), o -1 si no forma parte del sistema analizado.
+        int entry(int row, int col) {
+            int e = Arrays.binarySearch(entryCols, rowStart[row], rowStart[row + 1], position[col]);
+            return e < 0 ? -1 : e;
+        }
+
+        // Cantidad de lugares de L + U (con la diagonal y el relleno).
+        int patternSize() {
+            return lu.length;
+        }
+
+        // Carga los valores de las entradas en el patrón (el relleno empieza en cero).
+        void load(double[] entryValues) {
+            Arrays.fill(lu, 0);
+            for (int e=0; e<entrySlots.length; e++) lu[entrySlots[e]] = entryValues[e];
+        }
+
+        /**
+         * Factoriza los valores cargados con el orden de filas y el patrón fijos (Doolittle por filas).
+         * Devuelve false si un pivote se anula o queda chico frente a lo que elimina: la factorización
+         * queda inutilizable y hay que usar reanalyze().
+         */
+        boolean refactor() {
+            SparseLU p = pattern;
+            int diagonal = p.lowerSize + p.upperSize;
+            for (int k=0; k<n; k++) {
+                int[] lower = p.lowerCols[k];
+                int[] upper = p.upperCols[k];
+                int ls = p.lowerStart[k];
+                int us = p.lowerSize + p.upperStart[k];
+                for (int t=0; t<lower.length; t++) colSlot[lower[t]] = ls + t;
+                for (int t=0; t<upper.length; t++) colSlot[upper[t]] = us + t;
+                colSlot[k] = diagonal + k;
+                for (int t=0; t<lower.length; t++) {
+                    int i = lower[t];
+                    double pivot = lu[diagonal + i];
+                    if (Math.abs(lu[ls + t]) * PIVOT_THRESHOLD > Math.abs(pivot)) return false;
+                    double factor = lu[ls + t] / pivot;
+                    lu[ls + t] = factor;
+                    int[] c = p.upperCols[i];
+                    int ui = p.lowerSize + p.upperStart[i];
+                    for (int s=0; s<c.length; s++) lu[colSlot[c[s]]] -= factor * lu[ui + s];
+                }
+                if (!(Math.abs(lu[diagonal + k]) >= 1e-12)) return false;
+            }
+            return true;
+        }
+
+        // y = A x, con A dada por los valores de sus entradas.
+        void multiply(double[] entryValues, double[] x, double[] y) {
+            for (int r=0; r<n; r++) {
+                double sum = 0;
+                for (int e=rowStart[r]; e<rowStart[r + 1]; e++) sum += entryValues[e] * x[order[entryCols[e]]];
+                y[r] = sum;
+            }
+        }
+
+        // A como arreglo denso (sólo para mostrar la matriz de sistemas chicos).
+        double[][] toDense(double[] entryValues) {
+            double[][] A = new double[n][n];
+            for (int r=0; r<n; r++) {
+                for (int e=rowStart[r]; e<rowStart[r + 1]; e++) A[r][order[entryCols[e]]] = entryValues[e];
+            }
+            return A;
+        }
+
+        @Override
+        public void solveInto(double[] b, double[] x) {
+            SparseLU p = pattern;
+            int diagonal = p.lowerSize + p.upperSize;
+            double[] y = work;
+            for (int k=0; k<n; k++) {
+                double sum = b[p.rowOrder[k]];
+                int[] lower = p.lowerCols[k];
+                int ls = p.lowerStart[k];
+                for (int t=0; t<lower.length; t++) sum -= lu[ls + t] * y[lower[t]];
+                y[k] = sum;
+            }
+            for (int k=n-1; k>=0; k--) {
+                double sum = y[k];
+                int[] upper = p.upperCols[k];
+                int us = p.lowerSize + p.upperStart[k];
+                for (int s=0; s<upper.length; s++) sum -= lu[us + s] * y[upper[s]];
+                y[k] = sum / lu[diagonal + k];
+            }
+            for (int q=0; q<n; q++) x[order[q]] = y[q];
+        }
+
+        // Resuelve A^T x = c: U^T w = c (en columnas reordenadas), L^T z = w y x en la fila de cada paso.
+        @Override
+        public double[] solveTranspose(double[] c) {
+            SparseLU p = pattern;
+            int diagonal = p.lowerSize + p.upperSize;
+            double[] z = new double[n];
+            for (int q=0; q<n; q++) z[q] = c[order[q]];
+            for (int k=0; k<n; k++) {
+                z[k] /= lu[diagonal + k];
+                int[] upper = p.upperCols[k];
+                int us = p.lowerSize + p.upperStart[k];
+                for (int s=0; s<upper.length; s++) z[upper[s]] -= lu[us + s] * z[k];
+            }
+            for (int k=n-1; k>=0; k--) {
+                int[] lower = p.lowerCols[k];
+                int ls = p.lowerStart[k];
+                for (int t=0; t<lower.length; t++) z[lower[t]] -= lu[ls + t] * z[k];
+            }
+            double[] x = new double[n];
+            for (int k=0; k<n; k++) x[p.rowOrder[k]] = z[k];
+            return x;
+        }
+    }
+
+    /**
+     * Análisis AC de pequeña señal: A(ω) = G + jωB con las estampas de stampSmallSignal, resuelto con
+     * una LU dispersa compleja. El análisis simbólico se hace una sola vez: las incógnitas se reordenan
+     * con Reverse Cuthill-McKee y el orden de filas sale de un pivoteo parcial a una frecuencia de
+     * referencia, con el que queda fijo el patrón de L y U (incluido el relleno). Cada frecuencia sólo
+     * rehace la parte numérica sobre ese patrón, en un espacio de trabajo propio de cada hilo.
+     * Las fuentes independientes actúan como excitación, con su valor como amplitud y fase 0.
+     */
+    static class AcAnalysis {
+        // Tolerancia del residuo relativo; si una frecuencia no la cumple con el orden de filas
+        // compartido, se vuelve a factorizar con pivoteo a esa frecuencia.
+        static final double RESIDUAL_TOLERANCE = 1e-9;
+
+        final CircuitSolver solver;
+        final int n;
+        // order[p] = incógnita en la posición p; position es la inversa
+        private final int[] order;
+        private final int[] position;
+        // A(ω) por filas, en posiciones: columnas (crecientes) y valores de G y de B
+        private final int[][] cols;
+        private final double[][] g;
+        private final double[][] b;
+        private final double[] excitation;
+        private final SparseLU pattern;
+
+        // Espacio de trabajo numérico de un hilo: valores de L, U y la diagonal, la fila que se
+        // elimina (densa) y los vectores de la solución.
+        final class Workspace {
+            private final SparseLU p;
+            final double[] lr, li, ur, ui, dr, di, wr, wi, xr, xi;
+            Workspace(SparseLU p) {
+                this.p = p;
+                lr = new double[p.lowerSize];
+                li = new double[p.lowerSize];
+                ur = new double[p.upperSize];
+                ui = new double[p.upperSize];
+                dr = new double[n];
+                di = new double[n];
+                wr = new double[n];
+                wi = new double[n];
+                xr = new double[n];
+                xi = new double[n];
+            }
+            // Tensión compleja de la incógnita index (-1 = tierra) en la última solución.
+            double re(int index) {
+                return index < 0 ? 0 : xr[position[index]];
+            }
+            double im(int index) {
+                return index < 0 ? 0 : xi[position[index]];
+            }
+        }
+
+        /**
+         * Arma G, B y la excitación y hace el análisis simbólico a la frecuencia angular referenceOmega.
+         * Si hay elementos no lineales se calcula antes el punto de operación DC.
+         */
+        AcAnalysis(List<Node> nodes, List<CircuitElement> elements, double referenceOmega) throws Exception {
+            solver = new CircuitSolver(nodes, elements);
+            if(!solver.nonlinearElements.isEmpty()) {
+                solver.solveCircuit();
+            }
+            n = solver.buildIndex();
+
+            ArrayList<HashMap<Integer, double[]>> rows = new ArrayList<>();
+            for (int i=0; i<n; i++) rows.add(new HashMap<>());
+            double[] rhs = new double[n];
+            solver.stampSmallSignal(n,
+                (row, col, value) -> {
+                    if(col == n) rhs[row] += value;
+                    else rows.get(row).computeIfAbsent(col, c -> new double[2])[0] += value;
+                },
+                (row, col, value) -> rows.get(row).computeIfAbsent(col, c -> new double[2])[1] += value);
+
+            // Reordenamiento RCM sobre el patrón simétrico
+            ArrayList<Set<Integer>> columnSets = new ArrayList<>();
+            for (HashMap<Integer, double[]> row : rows) columnSets.add(row.keySet());
+            order = SparseLU.fillReducingOrder(columnSets);
+            position = new int[n];
+            for (int p=0; p<n; p++) position[order[p]] = p;
+
+            cols = new int[n][];
+            g = new double[n][];
+            b = new double[n][];
+            excitation = new double[n];
+            for (int p=0; p<n; p++) {
+                HashMap<Integer, double[]> row = rows.get(order[p]);
+                int[] c = new int[row.size()];
+                int t = 0;
+                for (int col : row.keySet()) c[t++] = position[col];
+                Arrays.sort(c);
+                cols[p] = c;
+                g[p] = new double[c.length];
+                b[p] = new double[c.length];
+                for (t=0; t<c.length; t++) {
+                    double[] v = row.get(order[c[t]]);
+                    g[p][t] = v[0];
+                    b[p][t] = v[1];
+                }
+                excitation[p] = rhs[order[p]];
+            }
+            pattern = analyze(referenceOmega);
+        }
+
+        // Análisis simbólico con pivoteo parcial a la frecuencia omega (ver SparseLU.analyze).
+        private SparseLU analyze(double omega) throws Exception {
+            double[][] im = new double[n][];
+            for (int p=0; p<n; p++) {
+                im[p] = new double[b[p].length];
+                for (int t=0; t<im[p].length; t++) im[p][t] = omega * b[p][t];
+            }
+            return SparseLU.analyze(cols, g, im);
+        }
+
+        Workspace newWorkspace() {
+            return new Workspace(pattern);
+        }
+
+        // Texto que indica con qué se excita el circuito: las fuentes independientes con su valor DC como
+        // amplitud y fase 0 (no hay fuentes aparte para AC).
+        String excitationNote() {
+            StringBuilder sb = new StringBuilder();
+            for(CircuitElement ce : solver.elements) {
+                if(!(ce instanceof VoltageSource) && !(ce instanceof CurrentSource)) continue;
+                sb.append(sb.length() == 0 ? "" : ", ").append(typeCode(ce)).append(" N").append(ce.node1.id)
+                  .append("-N").append(ce.node2.id).append(" = ").append(ce.getFormattedValue());
+            }
+            if(sb.length() == 0)
+                return "Excitación AC: no hay fuentes independientes; todas las tensiones son 0.\n";
+            return "Excitación AC: cada fuente independiente con su valor DC como amplitud y fase 0° ("
+                + sb + ").\n";
+        }
+
+        /**
+         * Resuelve A(omega) x = excitación en el espacio de trabajo w. Si con el orden de filas compartido
+         * algún pivote se anula o el residuo no cumple la tolerancia, se repite con un patrón propio de
+         * esta frecuencia. Devuelve el espacio de trabajo que tiene la solución.
+         */
+        Workspace solve(double omega, Workspace w) throws Exception {
+            if (factorAndSolve(omega, w) && residualOk(omega, w)) return w;
+            Workspace own = new Workspace(analyze(omega));
+            if (!factorAndSolve(omega, own))
+                throw new Exception("El sistema presenta singularidad o está mal condicionado.");
+            return own;
+        }
+
+        // LU por filas (Doolittle) sobre el patrón fijo y sustitución; false si un pivote es nulo.
+        private boolean factorAndSolve(double omega, Workspace w) {
+            SparseLU p = w.p;
+            double[] wr = w.wr, wi = w.wi;
+            for (int k=0; k<n; k++) {
+                int r = p.rowOrder[k];
+                int[] c = cols[r];
+                for (int t=0; t<c.length; t++) {
+                    wr[c[t]] = g[r][t];
+                    wi[c[t]] = omega * b[r][t];
+                }
+                int[] lower = p.lowerCols[k];
+                int ls = p.lowerStart[k];
+                for (int t=0; t<lower.length; t++) {
+                    int i = lower[t];
+                    double den = w.dr[i] * w.dr[i] + w.di[i] * w.di[i];
+                    double fr = (wr[i] * w.dr[i] + wi[i] * w.di[i]) / den;
+                    double fi = (wi[i] * w.dr[i] - wr[i] * w.di[i]) / den;
+                    w.lr[ls + t] = fr;
+                    w.li[ls + t] = fi;
+                    wr[i] = 0;
+                    wi[i] = 0;
+                    int[] upper = p.upperCols[i];
+                    int us = p.upperStart[i];
+                    for (int s=0; s<upper.length; s++) {
+                        int j = upper[s];
+                        double ur = w.ur[us + s], ui = w.ui[us + s];
+                        wr[j] -= fr * ur - fi * ui;
+                        wi[j] -= fr * ui + fi * ur;
+                    }
+                }
+                w.dr[k] = wr[k];
+                w.di[k] = wi[k];
+                wr[k] = 0;
+                wi[k] = 0;
+                if (w.dr[k] == 0 && w.di[k] == 0) return false;
+                int[] upper = p.upperCols[k];
+                int us = p.upperStart[k];
+                for (int s=0; s<upper.length; s++) {
+                    int j = upper[s];
+                    w.ur[us + s] = wr[j];
+                    w.ui[us + s] = wi[j];
+                    wr[j] = 0;
+                    wi[j] = 0;
+                }
+            }
+            // L y = P b (la parte imaginaria de la excitación es nula: fase 0)
+            double[] xr = w.xr, xi = w.xi;
+            for (int k=0; k<n; k++) {
+                double sr = excitation[p.rowOrder[k]], si = 0;
+                int[] lower = p.lowerCols[k];
+                int ls = p.lowerStart[k];
+                for (int t=0; t<lower.length; t++) {
+                    int i = lower[t];
+                    sr -= w.lr[ls + t] * xr[i] - w.li[ls + t] * xi[i];
+                    si -= w.lr[ls + t] * xi[i] + w.li[ls + t] * xr[i];
+                }
+                xr[k] = sr;
+                xi[k] = si;
+            }
+            // U x = y
+            for (int k=n-1; k>=0; k--) {
+                double sr = xr[k], si = xi[k];
+                int[] upper = p.upperCols[k];
+                int us = p.upperStart[k];
+                for (int s=0; s<upper.length; s++) {
+                    int j = upper[s];
+                    sr -= w.ur[us + s] * xr[j] - w.ui[us + s] * xi[j];
+                    si -= w.ur[us + s] * xi[j] + w.ui[us + s] * xr[j];
+                }
+                double den = w.dr[k] * w.dr[k] + w.di[k] * w.di[k];
+                xr[k] = (sr * w.dr[k] + si * w.di[k]) / den;
+                xi[k] = (si * w.dr[k] - sr * w.di[k]) / den;
+            }
+            return true;
+        }
+
+        // Residuo |A x - b| frente a |A| |x| + |b|, fila por fila.
+        private boolean residualOk(double omega, Workspace w) {
+            double residual = 0, scale = 0;
+            for (int r=0; r<n; r++) {
+                double sr = -excitation[r], si = 0, size = Math.abs(excitation[r]);
+                int[] c = cols[r];
+                for (int t=0; t<c.length; t++) {
+                    double ar = g[r][t], ai = omega * b[r][t];
+                    double xr = w.xr[c[t]], xi = w.xi[c[t]];
+                    sr += ar * xr - ai * xi;
+                    si += ar * xi + ai * xr;
+                    size += Math.hypot(ar, ai) * Math.hypot(xr, xi);
+                }
+                residual = Math.max(residual, Math.hypot(sr, si));
+                scale = Math.max(scale, size);
+            }
+            return Double.isFinite(residual) && residual <= RESIDUAL_TOLERANCE * scale;
+        }
+    }
+
+    // Puntos de frecuencia que resuelve cada tarea del barrido AC.
+    static final int AC_CHUNK = 64;
+
+    /**
+     * Barrido AC de "points" frecuencias espaciadas logarítmicamente entre fStart y fStop. Los puntos se
+     * reparten en tareas de AC_CHUNK frecuencias entre "threads" hilos, cada uno con su espacio de
+     * trabajo, y el CSV (f, módulo y fase en grados de la tensión de cada nodo) se escribe en orden a
+     * medida que terminan las tareas, con a lo sumo 2·threads tareas pendientes.
+     * Devuelve la descripción de la excitación usada (ver AcAnalysis.excitationNote).
+     */
+    static String runAcSweep(List<Node> nodes, List<CircuitElement> elements, double fStart, double fStop, int points,
+                             int threads, Writer out) throws Exception {
+        if(!(fStart > 0) || fStop < fStart || points < 1)
+            throw new Exception("El barrido AC requiere 0 < f inicial <= f final y al menos un punto.");
+        if(threads < 1)
+            throw new Exception("El barrido AC requiere al menos un hilo.");
+        AcAnalysis ac = new AcAnalysis(nodes, elements, 2 * Math.PI * Math.sqrt(fStart * fStop));
+
+        HashMap<Integer, Integer> repIds = representativeIds(nodes, elements);
+        ArrayList<Integer> columns = new ArrayList<>();
+        StringBuilder header = new StringBuilder("f");
+        for(Node nd : nodes) {
+            if(nd.id == 0) continue;
+            Integer pos = ac.solver.nodeIndex.get(repIds.get(nd.id));
+            columns.add(pos == null ? -1 : pos);
+            header.append(",|V(N").append(nd.id).append(")|,fase V(N").append(nd.id).append(")");
+        }
+        int[] cols = columns.stream().mapToInt(Integer::intValue).toArray();
+        out.write(header.append('\n').toString());
+
+        double ratio = (points > 1) ? Math.log(fStop / fStart) / (points - 1) : 0;
+        ThreadLocal<AcAnalysis.Workspace> workspaces = ThreadLocal.withInitial(ac::newWorkspace);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "barrido-ac");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+            for(int first=0; first<points; first+=AC_CHUNK) {
+                int from = first;
+                int to = Math.min(points, first + AC_CHUNK);
+                pending.add(pool.submit(() -> {
+                    StringBuilder sb = new StringBuilder();
+                    AcAnalysis.Workspace w = workspaces.get();
+                    for(int k=from; k<to; k++) {
+                        double f = fStart * Math.exp(ratio * k);
+                        AcAnalysis.Workspace x = ac.solve(2 * Math.PI * f, w);
+                        sb.append(f);
+                        for(int col : cols) {
+                            double re = x.re(col), im = x.im(col);
+                            sb.append(',').append(Math.hypot(re, im)).append(',').append(Math.toDegrees(Math.atan2(im, re)));
+                        }
+                        sb.append('\n');
+                    }
+                    return sb.toString();
+                }));
+                if(pending.size() >= 2 * threads) out.write(pending.poll().get());
+            }
+            while(!pending.isEmpty()) out.write(pending.poll().get());
+        } catch(ExecutionException ex) {
+            throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+        } finally {
+            pool.shutdownNow();
+        }
+        out.flush();
+        return ac.excitationNote();
+    }
+
+    /**
+     * Resolución por lotes de muchas instancias de una misma topología que sólo difieren en los valores
+     * de resistores y fuentes (por ejemplo, el mismo filtro con las tolerancias de cada pieza).
+     * El orden de pivotes y el patrón de L y U se calculan una sola vez con los valores nominales (LU
+     * dispersa con pivoteo parcial y columnas reordenadas con RCM, ver SparseLU), así que la memoria es
+     * proporcional a las entradas de L y U y no a n². Luego las instancias se arman y se eliminan a la
+     * par, guardadas como estructura de arreglos: cada entrada del patrón ocupa "instances" posiciones
+     * contiguas, una por instancia, de modo que los lazos internos recorren instancias con acceso
+     * secuencial y sin dependencias entre sí (el JIT los vectoriza).
+     * Si en alguna instancia un pivote queda chico frente a su columna con ese orden, esa instancia se
+     * vuelve a resolver sola con pivoteo parcial.
+     */
+    static class BatchSolver {
+        // Un pivote se acepta si es al menos esta fracción del mayor valor de su columna (pivoteo por umbral).
+        static final double PIVOT_THRESHOLD = 1e-3;
+        // Instancias por bloque en runBatch: el bloque de trabajo entra en la caché.
+        static final int DEFAULT_INSTANCES = 256;
+
+        final int instances;
+        private final CircuitSolver template;
+        private final int n;
+        // Columna (reordenada) de cada incógnita; la solución se guarda por columna
+        private final int[] position;
+        // Matriz por filas: columnas de cada fila (crecientes) y lugar del patrón de cada entrada
+        private final int[][] cols;
+        private final int[][] entrySlots;
+        private final SparseLU pattern;
+        // Parte de la matriz que no depende de los valores: incidencias de fuentes de voltaje e inductores
+        private final int[] constantSlots;
+        private final double[] constantValues;
+        // Para cada elemento (en el orden de la lista original): lugares de la matriz que toca su
+        // conductancia, o filas del lado derecho que toca su valor, con el signo de cada uno.
+        private final int[][] matrixSlots;
+        private final double[][] matrixSigns;
+        private final int[][] rhsRows;
+        private final double[][] rhsSigns;
+        private final double[] nominal;
+
+        // Almacenamiento por instancias: la entrada s de la instancia k está en [s * instances + k]
+        private final double[] assembled;
+        private final double[] lu;
+        private final double[] rhs;
+        private final double[] x;
+        private final double[] lane;
+        private final boolean[] fallback;
+        // Lugar de cada columna en la fila que se está eliminando
+        private final int[] colSlot;
+        private int fallbackCount;
+
+        BatchSolver(List<Node> nodes, List<CircuitElement> elements, int instances) throws Exception {
+            this.instances = instances;
+            template = new CircuitSolver(nodes, elements);
+            if(!template.nonlinearElements.isEmpty())
+                throw new Exception("La resolución por lotes sólo admite circuitos lineales (sin diodos).");
+            n = template.buildIndex();
+
+            // Análisis simbólico con los valores nominales
+            ArrayList<HashMap<Integer, double[]>> rows = new ArrayList<>();
+            for (int i=0; i<n; i++) rows.add(new HashMap<>());
+            template.stampSystem(n, (row, col, value) -> {
+                if(col < n) rows.get(row).computeIfAbsent(col, c -> new double[1])[0] += value;
+            });
+            ArrayList<Set<Integer>> columnSets = new ArrayList<>();
+            for (HashMap<Integer, double[]> row : rows) columnSets.add(row.keySet());
+            int[] order = SparseLU.fillReducingOrder(columnSets);
+            position = new int[n];
+            for (int q=0; q<n; q++) position[order[q]] = q;
+            cols = new int[n][];
+            double[][] values = new double[n][];
+            for (int r=0; r<n; r++) {
+                HashMap<Integer, double[]> row = rows.get(r);
+                int[] c = new int[row.size()];
+                int t = 0;
+                for (int col : row.keySet()) c[t++] = position[col];
+                Arrays.sort(c);
+                cols[r] = c;
+                values[r] = new double[c.length];
+                for (t=0; t<c.length; t++) values[r][t] = row.get(order[c[t]])[0];
+            }
+            pattern = SparseLU.analyze(cols, values, null);
+            int[] stepOf = new int[n];
+            for (int k=0; k<n; k++) stepOf[pattern.rowOrder[k]] = k;
+            entrySlots = new int[n][];
+            for (int r=0; r<n; r++) {
+                entrySlots[r] = new int[cols[r].length];
+                for (int t=0; t<cols[r].length; t++) entrySlots[r][t] = pattern.slot(stepOf[r], cols[r][t]);
+            }
+
+            // Las conductancias sólo aparecen en las filas y columnas de nodos; lo demás es constante.
+            ArrayList<Integer> constSlots = new ArrayList<>();
+            ArrayList<Double> constValues = new ArrayList<>();
+            template.stampSystem(n, (row, col, value) -> {
+                if(col < n && (row >= template.nNodes || col >= template.nNodes)) {
+                    constSlots.add(pattern.slot(stepOf[row], position[col]));
+                    constValues.add(value);
+                }
+            });
+            constantSlots = constSlots.stream().mapToInt(Integer::intValue).toArray();
+            constantValues = constValues.stream().mapToDouble(Double::doubleValue).toArray();
+
+            matrixSlots = new int[elements.size()][];
+            matrixSigns = new double[elements.size()][];
+            rhsRows = new int[elements.size()][];
+            rhsSigns = new double[elements.size()][];
+            nominal = new double[elements.size()];
+            for (int e=0; e<elements.size(); e++) {
+                CircuitElement ce = elements.get(e);
+                nominal[e] = ce.value;
+                int i = template.indexOf(ce.node1);
+                int j = template.indexOf(ce.node2);
+                if(ce instanceof Resistor) {
+                    ArrayList<Integer> slots = new ArrayList<>();
+                    ArrayList<Double> signs = new ArrayList<>();
+                    CircuitSolver.stampConductance((row, col, value) -> {
+                        slots.add(pattern.slot(stepOf[row], position[col]));
+                        signs.add(value);
+                    }, i, j, 1);
+                    matrixSlots[e] = slots.stream().mapToInt(Integer::intValue).toArray();
+                    matrixSigns[e] = signs.stream().mapToDouble(Double::doubleValue).toArray();
+                } else if(ce instanceof CurrentSource) {
+                    // Con los dos extremos en tierra (o unidos a tierra por cables) no aporta nada,
+                    // igual que en stampSystem
+                    if(i < 0 && j < 0) continue;
+                    if(i >= 0 && j >= 0) {
+                        rhsRows[e] = new int[]{i, j};
+                        rhsSigns[e] = new double[]{-1, 1};
+                    } else {
+                        rhsRows[e] = new int[]{Math.max(i, j)};
+                        rhsSigns[e] = new double[]{i >= 0 ? -1 : 1};
+                    }
+                } else if(ce instanceof VoltageSource) {
+                    rhsRows[e] = new int[]{template.nNodes + template.voltageSources.indexOf(ce)};
+                    rhsSigns[e] = new double[]{1};
+                }
+            }
+
+            assembled = new double[pattern.size() * instances];
+            lu = new double[pattern.size() * instances];
+            rhs = new double[n * instances];
+            x = new double[n * instances];
+            lane = new double[instances];
+            fallback = new boolean[instances];
+            colSlot = new int[n];
+        }
+
+        /**
+         * Resuelve las instancias first .. first+count-1: values[e][first + k] es el valor del elemento e
+         * (en el orden de la lista original) en la instancia k; si values[e] es null se usa el nominal.
+         */
+        void solve(double[][] values, int first, int count) throws Exception {
+            if(count > instances)
+                throw new Exception("El lote tiene " + count + " instancias y el solver admite " + instances + ".");
+            int K = instances;
+            Arrays.fill(assembled, 0);
+            Arrays.fill(rhs, 0);
+            for (int t=0; t<constantSlots.length; t++) {
+                int base = constantSlots[t] * K;
+                double v = constantValues[t];
+                for (int k=0; k<count; k++) assembled[base + k] += v;
+            }
+            for (int e=0; e<nominal.length; e++) {
+                boolean conductance = matrixSlots[e] != null;
+                int[] targets = conductance ? matrixSlots[e] : rhsRows[e];
+                if(targets == null) continue;
+                double[] signs = conductance ? matrixSigns[e] : rhsSigns[e];
+                double[] v = (e < values.length) ? values[e] : null;
+                for (int k=0; k<count; k++) {
+                    double value = (v == null) ? nominal[e] : v[first + k];
+                    lane[k] = conductance ? 1.0 / value : value;
+                }
+                double[] target = conductance ? assembled : rhs;
+                for (int t=0; t<targets.length; t++) {
+                    int base = targets[t] * K;
+                    double sign = signs[t];
+                    for (int k=0; k<count; k++) target[base + k] += sign * lane[k];
+                }
+            }
+
+            System.arraycopy(assembled, 0, lu, 0, assembled.length);
+            Arrays.fill(fallback, false);
+            factor(pattern, lu, K, count, colSlot, fallback);
+            substitute(pattern, lu, rhs, x, K, count);
+
+            fallbackCount = 0;
+            for (int k=0; k<count; k++) {
+                if(fallback[k]) {
+                    fallbackCount++;
+                    solveAlone(k);
+                }
+            }
+        }
+
+        /**
+         * Eliminación por filas de las instancias 0 .. count-1 a la par sobre el patrón p: en el paso k
+         * a la fila rowOrder[k] (ya armada en lu) se le restan los pasos de sus columnas de L, en orden.
+         * Antes de dividir por el pivote de la columna i, el valor de la entrada es el que vería el
+         * pivoteo parcial en esa columna; si supera al pivote en 1/PIVOT_THRESHOLD, o el pivote es casi
+         * nulo, la instancia se marca en bad.
+         */
+        private static void factor(SparseLU p, double[] lu, int K, int count, int[] colSlot, boolean[] bad) {
+            int diagonal = p.lowerSize + p.upperSize;
+            for (int k=0; k<p.n; k++) {
+                int[] lower = p.lowerCols[k];
+                int[] upper = p.upperCols[k];
+                int ls = p.lowerStart[k];
+                int us = p.lowerSize + p.upperStart[k];
+                for (int t=0; t<lower.length; t++) colSlot[lower[t]] = ls + t;
+                for (int t=0; t<upper.length; t++) colSlot[upper[t]] = us + t;
+                colSlot[k] = diagonal + k;
+                for (int t=0; t<lower.length; t++) {
+                    int i = lower[t];
+                    int l = (ls + t) * K;
+                    int d = (diagonal + i) * K;
+                    for (int kk=0; kk<count; kk++) {
+                        if (Math.abs(lu[l + kk]) * PIVOT_THRESHOLD > Math.abs(lu[d + kk])) bad[kk] = true;
+                        lu[l + kk] /= lu[d + kk];
+                    }
+                    int[] cols = p.upperCols[i];
+                    int ui = p.lowerSize + p.upperStart[i];
+                    for (int s=0; s<cols.length; s++) {
+                        int u = (ui + s) * K;
+                        int target = colSlot[cols[s]] * K;
+                        for (int kk=0; kk<count; kk++) lu[target + kk] -= lu[l + kk] * lu[u + kk];
+                    }
+                }
+                int d = (diagonal + k) * K;
+                for (int kk=0; kk<count; kk++) {
+                    if (!(Math.abs(lu[d + kk]) >= 1e-12)) bad[kk] = true;
+                }
+            }
+        }
+
+        // Sustitución hacia adelante y hacia atrás, también a la par. b está por fila del sistema y la
+        // solución x queda por columna.
+        private static void substitute(SparseLU p, double[] lu, double[] b, double[] x, int K, int count) {
+            int diagonal = p.lowerSize + p.upperSize;
+            for (int k=0; k<p.n; k++) {
+                int xk = k * K;
+                int bk = p.rowOrder[k] * K;
+                for (int kk=0; kk<count; kk++) x[xk + kk] = b[bk + kk];
+                int[] lower = p.lowerCols[k];
+                int ls = p.lowerStart[k];
+                for (int t=0; t<lower.length; t++) {
+                    int l = (ls + t) * K;
+                    int xi = lower[t] * K;
+                    for (int kk=0; kk<count; kk++) x[xk + kk] -= lu[l + kk] * x[xi + kk];
+                }
+            }
+            for (int k=p.n-1; k>=0; k--) {
+                int xk = k * K;
+                int[] upper = p.upperCols[k];
+                int us = p.lowerSize + p.upperStart[k];
+                for (int s=0; s<upper.length; s++) {
+                    int u = (us + s) * K;
+                    int xj = upper[s] * K;
+                    for (int kk=0; kk<count; kk++) x[xk + kk] -= lu[u + kk] * x[xj + kk];
+                }
+                int d = (diagonal + k) * K;
+                for (int kk=0; kk<count; kk++) x[xk + kk] /= lu[d + kk];
+            }
+        }
+
+        // Vuelve a resolver la instancia k sola, con un orden de pivotes propio de sus valores (NaN si es singular).
+        private void solveAlone(int k) {
+            int K = instances;
+            double[][] values = new double[n][];
+            double[] b = new double[n];
+            for (int r=0; r<n; r++) {
+                values[r] = new double[cols[r].length];
+                for (int t=0; t<cols[r].length; t++) values[r][t] = assembled[entrySlots[r][t] * K + k];
+                b[r] = rhs[r * K + k];
+            }
+            double[] sol = new double[n];
+            try {
+                SparseLU own = SparseLU.analyze(cols, values, null);
+                int[] stepOf = new int[n];
+                for (int s=0; s<n; s++) stepOf[own.rowOrder[s]] = s;
+                double[] ownLu = new double[own.size()];
+                for (int r=0; r<n; r++) {
+                    for (int t=0; t<cols[r].length; t++) ownLu[own.slot(stepOf[r], cols[r][t])] = values[r][t];
+                }
+                boolean[] singular = new boolean[1];
+                factor(own, ownLu, 1, 1, colSlot, singular);
+                substitute(own, ownLu, b, sol, 1, 1);
+                if (singular[0]) Arrays.fill(sol, Double.NaN);
+            } catch(Exception ex) {
+                Arrays.fill(sol, Double.NaN);
+            }
+            for (int q=0; q<n; q++) x[q * K + k] = sol[q];
+        }
+
+        // Valor de la incógnita index (índice del sistema, -1 = tierra) en la instancia k del último lote.
+        double unknown(int index, int k) {
+            return index < 0 ? 0 : x[position[index] * instances + k];
+        }
+
+        // Índice en el sistema de la tensión del nodo original con ese id (-1 si es tierra o está aislado).
+        int nodeColumn(int representativeId) {
+            Integer pos = template.nodeIndex.get(representativeId);
+            return pos == null ? -1 : pos;
+        }
+
+        // Instancias del último lote que se resolvieron solas por un pivote chico.
+        int getFallbackCount() {
+            return fallbackCount;
+        }
+    }
+
+    /**
+     * Resuelve en lote las instancias de values (values[e][k]: valor del elemento e en la instancia k,
+     * null para dejar el nominal) en bloques de BatchSolver.DEFAULT_INSTANCES y escribe un CSV con la
+     * tensión de cada nodo por instancia. Devuelve la cantidad de instancias resueltas solas.
+     */
+    static int runBatch(List<Node> nodes, List<CircuitElement> elements, double[][] values, int count,
+                        Writer out) throws Exception {
+        BatchSolver batch = new BatchSolver(nodes, elements, Math.min(count, BatchSolver.DEFAULT_INSTANCES));
+        HashMap<Integer, Integer> repIds = representativeIds(nodes, elements);
+        ArrayList<Integer> columns = new ArrayList<>();
+        StringBuilder header = new StringBuilder("instancia");
+        for(Node nd : nodes) {
+            if(nd.id == 0) continue;
+            columns.add(batch.nodeColumn(repIds.get(nd.id)));
+            header.append(",V(N").append(nd.id).append(")");
+        }
+        int[] cols = columns.stream().mapToInt(Integer::intValue).toArray();
+        out.write(header.append('\n').toString());
+
+        int fallbacks = 0;
+        StringBuilder line = new StringBuilder();
+        for(int first=0; first<count; first+=batch.instances) {
+            int block = Math.min(batch.instances, count - first);
+            batch.solve(values, first, block);
+            fallbacks += batch.getFallbackCount();
+            for(int k=0; k<block; k++) {
+                line.setLength(0);
+                line.append(first + k + 1);
+                for(int col : cols) {
+                    line.append(',').append(batch.unknown(col, k));
+                }
+                out.write(line.append('\n').toString());
+            }
+        }
+        out.flush();
+        return fallbacks;
+    }
+
+    /**
+     * Lee los valores de un lote desde un CSV: la primera fila tiene el número de cada elemento que
+     * varía (su posición entre las líneas ELEMENTO del archivo del circuito, desde 1) y cada fila
+     * siguiente es una instancia. Sólo pueden variar resistores y fuentes: el lote es de continua, así
+     * que el valor de capacitores e inductores no interviene. Devuelve values[e][k] (e = índice en
+     * netlist.elements) con null para los elementos que no aparecen.
+     */
+    static double[][] readBatchValues(File file, Netlist netlist) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for(String l : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if(!l.trim().isEmpty()) lines.add(l.trim());
+        }
+        if(lines.isEmpty()) throw new IOException("El archivo de valores está vacío.");
+        String[] header = lines.get(0).split("\\s*,\\s*");
+        int[] columns = new int[header.length];
+        HashSet<Integer> seen = new HashSet<>();
+        for(int c=0; c<header.length; c++) {
+            int ordinal;
+            try {
+                ordinal = Integer.parseInt(header[c]);
+            } catch(NumberFormatException ex) {
+                throw new IOException("Columna " + (c + 1) + ": \"" + header[c] + "\" no es un número de elemento.");
+            }
+            int e = netlist.elementOrdinals.indexOf(ordinal);
+            if(e < 0) {
+                boolean inFile = ordinal >= 1 && !netlist.elementOrdinals.isEmpty()
+                    && ordinal <= netlist.elementOrdinals.get(netlist.elementOrdinals.size() - 1);
+                throw new IOException(inFile
+                    ? "El elemento " + ordinal + " no se cargó del circuito (su línea tiene un error)."
+                    : "No existe el elemento " + ordinal + " en el circuito.");
+            }
+            CircuitElement ce = netlist.elements.get(e);
+            if(!(ce instanceof Resistor) && !(ce instanceof VoltageSource) && !(ce instanceof CurrentSource))
+                throw new IOException("El elemento " + ordinal + " es de tipo " + typeCode(ce)
+                    + ": en el lote sólo pueden variar resistores (R) y fuentes (V, I).");
+            if(!seen.add(e))
+                throw new IOException("El elemento " + ordinal + " aparece dos veces en el encabezado.");
+            columns[c] = e;
+        }
+        int count = lines.size() - 1;
+        double[][] values = new double[netlist.elements.size()][];
+        for(int col : columns) values[col] = new double[count];
+        for(int k=0; k<count; k++) {
+            String[] parts = lines.get(k + 1).split("\\s*,\\s*");
+            if(parts.length != columns.length)
+                throw new IOException("La fila " + (k + 2) + " no tiene " + columns.length + " valores.");
+            for(int c=0; c<columns.length; c++) {
+                double v;
+                try {
+                    v = parseValue(parts[c]);
+                } catch(NumberFormatException ex) {
+                    throw new IOException("Fila " + (k + 2) + ": valor inválido \"" + parts[c] + "\".");
+                }
+                if(netlist.elements.get(columns[c]) instanceof Resistor && !(v > 0))
+                    throw new IOException("Fila " + (k + 2) + ": la resistencia del elemento " + header[c] + " debe ser positiva.");
+                values[columns[c]][k] = v;
+            }
+        }
+        return values;
+    }
+
+    // Derivada de una salida respecto del valor de un elemento (resistencia, voltaje o corriente).
+    static class Sensitivity {
+        final CircuitElement element;
+        final double derivative;
+        Sensitivity(CircuitElement element, double derivative) {
+            this.element = element;
+            this.derivative = derivative;
+        }
+        // Sensibilidad normalizada (dy/dp)·p: cambio de la salida por cada unidad relativa del parámetro.
+        double normalized() {
+            return derivative * element.value;
+        }
+    }
+
+    // Destino de las estampas de los elementos al armar el sistema (fila, columna, valor a sumar).
+    interface MatrixStamp {
+        void add(int row, int col, double value);
+    }
+
+    /**
+     * Matriz densa almacenada fuera del heap de Java, mapeada a un archivo temporal. Se divide en bloques
+     * de filas porque cada buffer de NIO está limitado a 2 GB; así se pueden resolver sistemas más grandes
+     * que el heap sin que el recolector de basura recorra la matriz. (Las páginas mapeadas no cuentan para
+     * MaxDirectMemorySize, a diferencia de ByteBuffer.allocateDirect.)
+     */
+    static class OffHeapMatrix implements Closeable {
+        private static final int MAX_CHUNK_BYTES = 1 << 30;
+        final int rows, cols;
+        private final int rowsPerChunk;
+        private final DoubleBuffer[] chunks;
+        // Cierra y borra el archivo al llamar a close() o, si nadie la cierra (los factores de un
+        // OffHeapLU viven lo que el CircuitSolver), cuando la matriz deja de ser alcanzable.
+        private final Cleaner.Cleanable cleanable;
+        private static final Cleaner CLEANER = Cleaner.create();
+
+        private OffHeapMatrix(int rows, int cols, RandomAccessFile scratch, File scratchFile) throws IOException {
+            this.rows = rows;
+            this.cols = cols;
+            this.rowsPerChunk = Math.max(1, MAX_CHUNK_BYTES / (cols * Double.BYTES));
+            // La acción no debe referirse a la matriz, sólo al archivo
+            cleanable = CLEANER.register(this, () -> {
+                try {
+                    scratch.close();
+                } catch(IOException ex) {
+                    // Se borra igual
+                }
+                scratchFile.delete();
+            });
+            int nChunks = Math.max(1, (rows + rowsPerChunk - 1) / rowsPerChunk);
+            chunks = new DoubleBuffer[nChunks];
+            for (int c = 0; c < nChunks; c++) {
+                int chunkRows = Math.min(rowsPerChunk, rows - c * rowsPerChunk);
+                long bytes = (long) chunkRows * cols * Double.BYTES;
+                long offset = (long) c * rowsPerChunk * cols * Double.BYTES;
+                ByteBuffer buffer = scratch.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, bytes);
+                chunks[c] = buffer.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            }
+        }
+
+        // Matriz (inicializada en cero) mapeada a un archivo temporal en el directorio indicado, o en el
+        // directorio temporal del sistema si es null; el archivo se borra al cerrar.
+        static OffHeapMatrix mapScratchFile(int rows, int cols, File directory) throws IOException {
+            File file = File.createTempFile("circuito", ".mat", directory);
+            file.deleteOnExit();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength((long) rows * cols * Double.BYTES);
+                return new OffHeapMatrix(rows, cols, raf, file);
+            } catch (IOException ex) {
+                raf.close();
+                file.delete();
+                throw ex;
+            }
+        }
+
+        // Buffer que contiene la fila indicada; se usa junto con rowOffset en los bucles internos.
+        DoubleBuffer rowBuffer(int row) {
+            return chunks[row / rowsPerChunk];
+        }
+
+        int rowOffset(int row) {
+            return (row % rowsPerChunk) * cols;
+        }
+
+        double get(int row, int col) {
+            return rowBuffer(row).get(rowOffset(row) + col);
+        }
+
+        void set(int row, int col, double value) {
+            rowBuffer(row).put(rowOffset(row) + col, value);
+        }
+
+        void add(int row, int col, double value) {
+            DoubleBuffer buffer = rowBuffer(row);
+            int pos = rowOffset(row) + col;
+            buffer.put(pos, buffer.get(pos) + value);
+        }
+
+        @Override
+        public void close() {
+            cleanable.clean();
+        }
+    }
+
+    /**
+     * Factorización LU con pivoteo parcial (PA = LU) hecha en su lugar sobre una OffHeapMatrix de n x n:
+     * los multiplicadores de L quedan debajo de la diagonal y U en la diagonal y arriba, en el mismo
+     * archivo mapeado, así que se puede volver a resolver (también con la transpuesta) sin copiar la
+     * matriz al heap. Las filas se recorren en tramos contiguos con get/put en bloque; en el heap sólo
+     * hay arreglos de tamaño n.
+     */
+    static class OffHeapLU implements Factorization {
+        final int n;
+        private final OffHeapMatrix lu;
+        // perm[i] = fila de lu que ocupa el lugar i tras los intercambios (no se mueven datos)
+        private final int[] perm;
+
+        private OffHeapLU(OffHeapMatrix lu, int[] perm) {
+            this.n = lu.rows;
+            this.lu = lu;
+            this.perm = perm;
+        }
+
+        // Factoriza a en su lugar; a queda en poder de la factorización.
+        static OffHeapLU factor(OffHeapMatrix a) throws Exception {
+            int n = a.rows;
+            int[] perm = new int[n];
+            for (int i=0; i<n; i++) perm[i] = i;
+            double[] pivotRow = new double[n];
+            double[] row = new double[n];
+            for (int i=0; i<n; i++){
+                int maxRow = i;
+                double maxAbs = Math.abs(a.get(perm[i], i));
+                for (int k=i+1; k<n; k++){
+                    double v = Math.abs(a.get(perm[k], i));
+                    if (v > maxAbs) {
+                        maxAbs = v;
+                        maxRow = k;
+                    }
+                }
+                int temp = perm[i];
+                perm[i] = perm[maxRow];
+                perm[maxRow] = temp;
+
+                if(maxAbs < 1e-12)
+                    throw new Exception("El sistema presenta singularidad o está mal condicionado.");
+
+                // La fila pivote (desde la diagonal) se copia una vez al heap para todo el paso
+                int len = n - i;
+                a.rowBuffer(perm[i]).get(a.rowOffset(perm[i]) + i, pivotRow, 0, len);
+                double pivot = pivotRow[0];
+                for (int k=i+1; k<n; k++){
+                    DoubleBuffer buffer = a.rowBuffer(perm[k]);
+                    int ro = a.rowOffset(perm[k]) + i;
+                    // Las matrices MNA son muy ralas: se omiten las filas que ya tienen cero en la columna.
+                    if (buffer.get(ro) == 0) continue;
+                    buffer.get(ro, row, 0, len);
+                    double factor = row[0] / pivot;
+                    row[0] = factor;
+                    for (int j=1; j<len; j++){
+                        row[j] -= factor * pivotRow[j];
+                    }
+                    buffer.put(ro, row, 0, len);
+                }
+            }
+            return new OffHeapLU(a, perm);
+        }
+
+        // Resuelve A x = b por sustitución hacia adelante y hacia atrás, leyendo cada fila en un tramo.
+        @Override
+        public void solveInto(double[] b, double[] x) {
+            double[] work = new double[n];
+            for (int i=0; i<n; i++){
+                lu.rowBuffer(perm[i]).get(lu.rowOffset(perm[i]), work, 0, i);
+                double sum = b[perm[i]];
+                for (int j=0; j<i; j++){
+                    sum -= work[j] * x[j];
+                }
+                x[i] = sum;
+            }
+            for (int i=n-1; i>=0; i--){
+                lu.rowBuffer(perm[i]).get(lu.rowOffset(perm[i]) + i, work, 0, n - i);
+                double sum = x[i];
+                for (int j=1; j<n-i; j++){
+                    sum -= work[j] * x[i + j];
+                }
+                x[i] = sum / work[0];
+            }
+        }
+
+        // Resuelve A^T x = c: U^T z = c, luego L^T w = z y x = P^T w, también por filas de lu.
+        @Override
+        public double[] solveTranspose(double[] c) {
+            double[] work = new double[n];
+            double[] z = c.clone();
+            for (int j=0; j<n; j++){
+                lu.rowBuffer(perm[j]).get(lu.rowOffset(perm[j]) + j, work, 0, n - j);
+                z[j] /= work[0];
+                for (int i=1; i<n-j; i++){
+                    z[j + i] -= work[i] * z[j];
+                }
+            }
+            for (int j=n-1; j>=0; j--){
+                lu.rowBuffer(perm[j]).get(lu.rowOffset(perm[j]), work, 0, j);
+                for (int i=0; i<j; i++){
+                    z[i] -= work[i] * z[j];
+                }
+            }
+            double[] x = new double[n];
+            for (int i=0; i<n; i++){
+                x[perm[i]] = z[i];
+            }
+            return x;
+        }
+    }
+
+     // Clase para representar un cable (conexión ideal, resistencia cero)
+    static class Cable extends CircuitElement {
+        public Cable(Node node1, Node node2) {
+            super(node1, node2, 0.0);
+        }
+        @Override
+        public String getFormattedValue() {
+            return "Cable";
+        }
+    }
+    
+// Devuelve, para cada id de nodo, el id del nodo que lo representa al fusionar los nodos unidos por cables.
+// En cada grupo se elige la tierra (id 0) si está en el grupo y, si no, el primer nodo de la lista.
+private static HashMap<Integer, Integer> representativeIds(List<Node> nodes, List<CircuitElement> elements) {
+    HashMap<Integer, Integer> parent = new HashMap<>();
+    for (Node n : nodes) parent.put(n.id, n.id);
+
+    // Búsqueda iterativa para no desbordar la pila en cadenas largas de cables
+    java.util.function.Function<Integer, Integer> find = x -> {
+        int root = x;
+        while (parent.get(root) != root) root = parent.get(root);
+        while (x != root) {
+            int next = parent.get(x);
+            parent.put(x, root);
+            x = next;
+        }
+        return root;
+    };
+
+    for (CircuitElement elem : elements) {
+        if (elem instanceof Cable) {
+            parent.putIfAbsent(elem.node1.id, elem.node1.id);
+            parent.putIfAbsent(elem.node2.id, elem.node2.id);
+            int pa = find.apply(elem.node1.id);
+            int pb = find.apply(elem.node2.id);
+            if (pa != pb) parent.put(pa, pb);
+        }
+    }
+
+    HashMap<Integer, Integer> chosen = new HashMap<>();
+    for (Node n : nodes) {
+        int root = find.apply(n.id);
+        if (n.id == 0) chosen.put(root, 0);
+        else chosen.putIfAbsent(root, n.id);
+    }
+    HashMap<Integer, Integer> repIds = new HashMap<>();
+    for (Integer id : parent.keySet()) {
+        Integer rep = chosen.get(find.apply(id));
+        repIds.put(id, rep == null ? id : rep);
+    }
+    return repIds;
+}
+
+    // Crea un elemento del mismo tipo y valor que ce, conectado a los nodos indicados.
+    static CircuitElement copyElement(CircuitElement ce, Node n1, Node n2) {
+        return copyElement(ce, n1, n2, ce.value);
+    }
+
+    // Crea un elemento del mismo tipo que ce, conectado a los nodos indicados y con otro valor.
+    static CircuitElement copyElement(CircuitElement ce, Node n1, Node n2, double value) {
+        if(ce instanceof Resistor)
+            return new Resistor(n1, n2, value);
+        else if(ce instanceof VoltageSource)
+            return new VoltageSource(n1, n2, value);
+        else if(ce instanceof CurrentSource)
+            return new CurrentSource(n1, n2, value);
+        else if(ce instanceof Cable)
+            return new Cable(n1, n2);
+        else if(ce instanceof Capacitor)
+            return new Capacitor(n1, n2, value);
+        else if(ce instanceof Inductor)
+            return new Inductor(n1, n2, value);
+        else if(ce instanceof Diode)
+            return new Diode(n1, n2, value);
+        return null;
+    }
+
+    // Código del tipo de elemento tal como aparece en los archivos (R, V, I, C, CAP, L o D).
+    static String typeCode(CircuitElement ce) {
+        if(ce instanceof Resistor) return "R";
+        if(ce instanceof VoltageSource) return "V";
+        if(ce instanceof CurrentSource) return "I";
+        if(ce instanceof Cable) return "C";
+        if(ce instanceof Capacitor) return "CAP";
+        if(ce instanceof Inductor) return "L";
+        if(ce instanceof Diode) return "D";
+        return "?";
+    }
+
+    /**
+     * Diferencias entre el circuito actual y una nueva versión leída del archivo.
+     * Los nodos se comparan por id; los elementos por tipo y nodos, en el orden del archivo,
+     * de modo que un elemento que sólo cambia de valor se conserva y se modifica en su lugar.
+     */
+    static class NetlistDiff {
+        final ArrayList<Node> addedNodes = new ArrayList<>();
+        final ArrayList<Node> removedNodes = new ArrayList<>();
+        final ArrayList<Node> movedNodes = new ArrayList<>();
+        final ArrayList<Node> movedTo = new ArrayList<>();
+        final ArrayList<CircuitElement> addedElements = new ArrayList<>();
+        final ArrayList<CircuitElement> removedElements = new ArrayList<>();
+        // Elementos actuales cuyo valor cambia, el valor nuevo de cada uno y (tras Circuit.apply) el
+        // elemento que los reemplaza
+        final ArrayList<CircuitElement> changedElements = new ArrayList<>();
+        final ArrayList<Double> newValues = new ArrayList<>();
+        final ArrayList<CircuitElement> replacements = new ArrayList<>();
+        // Posición en las listas del circuito actual de cada nodo movido o quitado y de cada elemento
+        // cambiado o quitado, para que Circuit.apply reemplace sólo esas posiciones
+        final ArrayList<Integer> movedIndices = new ArrayList<>();
+        final ArrayList<Integer> removedNodeIndices = new ArrayList<>();
+        final ArrayList<Integer> changedIndices = new ArrayList<>();
+        final ArrayList<Integer> removedElementIndices = new ArrayList<>();
+
+        static NetlistDiff compute(List<Node> nodes, List<CircuitElement> elements, Netlist target) {
+            NetlistDiff diff = new NetlistDiff();
+            // Posición del primer nodo con cada id
+            HashMap<Integer, Integer> current = new HashMap<>();
+            for(int i=0; i<nodes.size(); i++) current.putIfAbsent(nodes.get(i).id, i);
+            HashSet<Integer> targetIds = new HashSet<>();
+            for(Node t : target.nodes) {
+                if(!targetIds.add(t.id)) continue;
+                Integer i = current.get(t.id);
+                if(i == null) {
+                    diff.addedNodes.add(t);
+                } else if(nodes.get(i).x != t.x || nodes.get(i).y != t.y) {
+                    diff.movedNodes.add(nodes.get(i));
+                    diff.movedTo.add(t);
+                    diff.movedIndices.add(i);
+                }
+            }
+            for(int i=0; i<nodes.size(); i++) {
+                if(!targetIds.contains(nodes.get(i).id)) {
+                    diff.removedNodes.add(nodes.get(i));
+                    diff.removedNodeIndices.add(i);
+                }
+            }
+
+            HashMap<String, ArrayDeque<Integer>> bySignature = new HashMap<>();
+            for(int i=0; i<elements.size(); i++) {
+                bySignature.computeIfAbsent(signature(elements.get(i)), k -> new ArrayDeque<>()).add(i);
+            }
+            for(CircuitElement t : target.elements) {
+                ArrayDeque<Integer> candidates = bySignature.get(signature(t));
+                Integer i = (candidates == null) ? null : candidates.poll();
+                if(i == null) {
+                    diff.addedElements.add(t);
+                } else if(Double.compare(elements.get(i).value, t.value) != 0) {
+                    diff.changedElements.add(elements.get(i));
+                    diff.newValues.add(t.value);
+                    diff.changedIndices.add(i);
+                }
+            }
+            for(ArrayDeque<Integer> left : bySignature.values()) {
+                diff.removedElementIndices.addAll(left);
+            }
+            Collections.sort(diff.removedElementIndices);
+            for(int i : diff.removedElementIndices) diff.removedElements.add(elements.get(i));
+            return diff;
+        }
+
+        private static String signature(CircuitElement ce) {
+            return typeCode(ce) + " " + ce.node1.id + " " + ce.node2.id;
+        }
+
+        boolean isEmpty() {
+            return !isStructural() && movedNodes.isEmpty() && changedElements.isEmpty();
+        }
+
+        // Cambia la topología (y por lo tanto la numeración de incógnitas del sistema).
+        boolean isStructural() {
+            return !addedNodes.isEmpty() || !removedNodes.isEmpty()
+                || !addedElements.isEmpty() || !removedElements.isEmpty();
+        }
+
+        // Mover nodos sólo cambia el dibujo, no la solución.
+        boolean affectsSolution() {
+            return isStructural() || !changedElements.isEmpty();
+        }
+
+        String summary() {
+            return "nodos +" + addedNodes.size() + " -" + removedNodes.size() + " ~" + movedNodes.size()
+                + ", elementos +" + addedElements.size() + " -" + removedElements.size() + " ~" + changedElements.size();
+        }
+    }
+
+    /**
+     * Resolución incremental para la vigilancia de archivos. Conserva el sistema factorizado de la
+     * última solución; si sólo cambian valores se reemplazan los elementos y se corrige el sistema en
+     * su lugar: un resistor que cambia es una actualización de rango 1 de la factorización y una fuente
+     * sólo cambia el lado derecho. Los cambios de topología se resuelven desde cero.
+     */
+    static class IncrementalSolver {
+        private CircuitSolver solver;
+        private String lastStrategy = "";
+        // Directorio del archivo temporal para los sistemas que se guardan fuera del heap (null = el del sistema)
+        private File scratchDirectory = null;
+
+        void setScratchDirectory(File directory) {
+            scratchDirectory = directory;
+        }
+
+        // Resuelve desde cero.
+        CircuitSolver solveFull(List<Node> nodes, List<CircuitElement> elements) throws Exception {
+            solver = null;
+            CircuitSolver full = new CircuitSolver(nodes, elements);
+            full.setOffHeapStorage(false, scratchDirectory);
+            full.solveCircuit();
+            solver = full;
+            lastStrategy = "resolución completa";
+            return solver;
+        }
+
+        // Resuelve el circuito (ya actualizado con Circuit.apply) reutilizando lo posible.
+        CircuitSolver update(List<Node> nodes, List<CircuitElement> elements, NetlistDiff diff) throws Exception {
+            if(solver == null || diff.isStructural() || !solver.canReuseFactorization())
+                return solveFull(nodes, elements);
+            for(CircuitElement ce : diff.changedElements) {
+                if(!solver.contains(ce)) return solveFull(nodes, elements);
             }
-            
-            // Eliminación hacia adelante
-            for (int i=0; i<n; i++){
-                int maxRow = i;
-                for (int k=i+1; k<n; k++){
-                    if (Math.abs(aug[k][i]) > Math.abs(aug[maxRow][i])) {
-                        maxRow = k;
+            boolean matrixChanged = false;
+            for(int k=0; k<diff.changedElements.size(); k++) {
+                matrixChanged |= solver.replaceElement(diff.changedElements.get(k), diff.replacements.get(k));
+            }
+            try {
+                solver.resolve();
+            } catch(Exception ex) {
+                solver = null;
+                throw ex;
+            }
+            if(!matrixChanged)
+                lastStrategy = "reutiliza la factorización (sólo cambia el lado derecho)";
+            else if(solver.wasRefactored())
+                lastStrategy = "corrección del sistema armado y nueva factorización";
+            else
+                lastStrategy = "actualización de rango 1 de la factorización (Sherman-Morrison)";
+            return solver;
+        }
+
+        String getLastStrategy() {
+            return lastStrategy;
+        }
+
+        // Última solución válida (null si la última resolución falló).
+        CircuitSolver getSolver() {
+            return solver;
+        }
+    }
+
+    // Tiempo sin nuevos cambios que se espera antes de volver a leer un archivo vigilado.
+    static final long WATCH_DEBOUNCE_MS = 200;
+
+    /**
+     * Vigila un archivo con WatchService y ejecuta onChange cuando se modifica. Los guardados
+     * seguidos se agrupan: la acción corre cuando pasan debounceMillis sin nuevos eventos.
+     */
+    static class NetlistWatcher implements Closeable {
+        private final Path file;
+        private final long debounceMillis;
+        private final Runnable onChange;
+        private final WatchService watchService;
+        private final ScheduledExecutorService scheduler;
+        private final Thread thread;
+        private ScheduledFuture<?> pending;
+
+        NetlistWatcher(File file, long debounceMillis, Runnable onChange) throws IOException {
+            this.file = file.toPath().toAbsolutePath();
+            this.debounceMillis = debounceMillis;
+            this.onChange = onChange;
+            watchService = FileSystems.getDefault().newWatchService();
+            // Se vigila el directorio: los editores que guardan con renombrado crean un archivo nuevo.
+            this.file.getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "recarga-circuito");
+                t.setDaemon(true);
+                return t;
+            });
+            thread = new Thread(this::watchLoop, "vigilancia-circuito");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void watchLoop() {
+            try {
+                while(true) {
+                    WatchKey key = watchService.take();
+                    for(WatchEvent<?> event : key.pollEvents()) {
+                        if(event.kind() == StandardWatchEventKinds.OVERFLOW
+                                || file.getFileName().equals(event.context())) {
+                            scheduleReload();
+                        }
                     }
+                    if(!key.reset()) break;
                 }
-                double[] temp = aug[i];
-                aug[i] = aug[maxRow];
-                aug[maxRow] = temp;
-                
-                if(Math.abs(aug[i][i]) < 1e-12)
-                    throw new Exception("El sistema presenta singularidad o está mal condicionado.");
-                
-                double pivot = aug[i][i];
-                for (int j=i; j<n+1; j++){
-                    aug[i][j] /= pivot;
+            } catch(InterruptedException | ClosedWatchServiceException ex) {
+                // Fin de la vigilancia
+            }
+        }
+
+        private synchronized void scheduleReload() {
+            if(pending != null) pending.cancel(false);
+            pending = scheduler.schedule(onChange, debounceMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // Recarga ya, en el hilo de recarga (p.ej. la lectura inicial del archivo).
+        void reloadNow() {
+            scheduler.execute(onChange);
+        }
+
+        // Espera hasta que termine la vigilancia.
+        void await() throws InterruptedException {
+            thread.join();
+        }
+
+        @Override
+        public void close() throws IOException {
+            watchService.close();
+            scheduler.shutdownNow();
+        }
+    }
+
+    // Resultado de aplicar una nueva versión del archivo vigilado: el circuito que queda y el texto a mostrar.
+    static final class Reload {
+        final Circuit circuit;
+        final String report;
+
+        Reload(Circuit circuit, String report) {
+            this.circuit = circuit;
+            this.report = report;
+        }
+    }
+
+    /**
+     * Aplica al circuito sólo las diferencias con la netlist leída y vuelve a resolver. El circuito que
+     * devuelve comparte con el anterior todo lo que no cambió (el anterior no se modifica, así que puede
+     * quedar en el historial). Devuelve null si el archivo no cambió.
+     */
+    static Reload applyNetlistChange(Netlist netlist, Circuit circuit, IncrementalSolver incremental) {
+        long start = System.nanoTime();
+        NetlistDiff diff = NetlistDiff.compute(circuit.nodes(), circuit.elements(), netlist);
+        if(diff.isEmpty()) return null;
+        Circuit next = circuit.apply(diff);
+        List<Node> nodes = next.nodes();
+        List<CircuitElement> elements = next.elements();
+        StringBuilder sb = new StringBuilder();
+        sb.append("\nCambios en el archivo: ").append(diff.summary()).append("\n");
+        if(!diff.affectsSolution()) {
+            sb.append("Sin cambios eléctricos; no se vuelve a resolver.\n");
+            return new Reload(next, sb.toString());
+        }
+        boolean hasGround = false;
+        for(Node n : nodes) {
+            if(n.id == 0) hasGround = true;
+        }
+        if(!hasGround) {
+            sb.append("Debe existir un nodo con ID 0 (tierra).\n");
+            return new Reload(next, sb.toString());
+        }
+        try {
+            // Sin la matriz aumentada: en cada guardado sólo interesan los resultados, y el tiempo
+            // informado incluye armar su texto.
+            CircuitSolver solver = incremental.update(nodes, elements, diff);
+            sb.append(formatResults(solver, nodes, elements, false));
+            double ms = (System.nanoTime() - start) / 1e6;
+            sb.append(String.format("Estrategia: %s (%.1f ms con el texto de resultados)%n",
+                incremental.getLastStrategy(), ms));
+        } catch(Exception ex) {
+            sb.append("Error al resolver el circuito: ").append(ex.getMessage()).append("\n");
+        }
+        return new Reload(next, sb.toString());
+    }
+
+    private static void printSensitivities(String output, List<Node> nodes, List<CircuitElement> elements,
+                                           IncrementalSolver incremental) {
+        if(output == null || incremental.getSolver() == null) return;
+        try {
+            System.out.print(formatSensitivities(incremental.getSolver(), output, nodes, elements));
+        } catch(Exception ex) {
+            System.out.println("Error en el análisis de sensibilidad: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Modo sin interfaz gráfica:
+     *   java CircuitSolverGUI --headless archivo.txt [--watch] [--sens salida]
+     *                         [--tran paso pasos salida.csv [--trap] [--cada N]]
+     *                         [--lote valores.csv salida.csv]
+     *                         [--ac f_inicial f_final puntos salida.csv [--hilos N]] [--scratch DIR]
+     * Resuelve el archivo e imprime los resultados; con --watch vuelve a resolver cada vez que se guarda.
+     * Con --sens se agregan las sensibilidades de la salida (id de nodo o "n1-n2") a cada elemento.
+     * Con --tran se corre además un análisis transitorio (Euler hacia atrás, o trapezoidal con --trap)
+     * y se escribe una fila del CSV cada N pasos.
+     * Con --lote se resuelve el mismo circuito con cada fila de valores del CSV (ver readBatchValues).
+     * Con --ac se hace un barrido de frecuencia logarítmico repartido en N hilos (por defecto, uno por
+     * procesador) y se escriben módulo y fase de la tensión de cada nodo.
+     * Con --scratch, los sistemas de OFF_HEAP_THRESHOLD ecuaciones o más se guardan en un archivo temporal
+     * de ese directorio (por defecto, el directorio temporal del sistema).
+     */
+    private static void runHeadless(String[] args) throws Exception {
+        File file = null;
+        boolean watch = false;
+        String sensOutput = null;
+        File tranFile = null;
+        double tranStep = 0;
+        long tranSteps = 0;
+        boolean trapezoidal = false;
+        int every = 1;
+        File batchValues = null;
+        File batchFile = null;
+        File acFile = null;
+        double acStart = 0, acStop = 0;
+        int acPoints = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File scratch = null;
+        String usage = "Uso: java CircuitSolverGUI --headless archivo.txt [--watch] [--sens salida] [--tran paso pasos salida.csv [--trap] [--cada N]] [--lote valores.csv salida.csv] [--ac f_inicial f_final puntos salida.csv [--hilos N]] [--scratch DIR]";
+        String error = null;
+        try {
+            for(int i=1; i<args.length; i++) {
+                if(args[i].equals("--watch")) watch = true;
+                else if(args[i].equals("--sens") && i+1 < args.length) sensOutput = args[++i];
+                else if(args[i].equals("--tran") && i+3 < args.length) {
+                    tranStep = parseValue(args[++i]);
+                    tranSteps = Long.parseLong(args[++i]);
+                    tranFile = new File(args[++i]);
                 }
-                for (int k=i+1; k<n; k++){
-                    double factor = aug[k][i];
-                    for (int j=i; j<n+1; j++){
-                        aug[k][j] -= factor * aug[i][j];
+                else if(args[i].equals("--trap")) trapezoidal = true;
+                else if(args[i].equals("--cada") && i+1 < args.length) every = Integer.parseInt(args[++i]);
+                else if(args[i].equals("--lote") && i+2 < args.length) {
+                    batchValues = new File(args[++i]);
+                    batchFile = new File(args[++i]);
+                }
+                else if(args[i].equals("--ac") && i+4 < args.length) {
+                    acStart = parseValue(args[++i]);
+                    acStop = parseValue(args[++i]);
+                    acPoints = Integer.parseInt(args[++i]);
+                    acFile = new File(args[++i]);
+                }
+                else if(args[i].equals("--hilos") && i+1 < args.length) threads = Integer.parseInt(args[++i]);
+                else if(args[i].equals("--scratch") && i+1 < args.length) scratch = new File(args[++i]);
+                else file = new File(args[i]);
+            }
+        } catch(NumberFormatException ex) {
+            error = "Valor inválido en los argumentos: " + ex.getMessage();
+        }
+        if(error == null && threads < 1) error = "--hilos debe ser al menos 1.";
+        if(error != null || file == null) {
+            if(error != null) System.err.println(error);
+            System.err.println(usage);
+            System.exit(2);
+        }
+        Netlist netlist;
+        try {
+            netlist = parseNetlist(file, null);
+        } catch(IOException ex) {
+            System.err.println("Error al leer el archivo: " + ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        Circuit loaded = Circuit.of(netlist.nodes, netlist.elements);
+        List<Node> nodes = loaded.nodes();
+        List<CircuitElement> elements = loaded.elements();
+        IncrementalSolver incremental = new IncrementalSolver();
+        incremental.setScratchDirectory(scratch);
+        // Primera resolución: resultados completos, sin resumen de cambios
+        boolean hasGround = false;
+        for(Node n : nodes) {
+            if(n.id == 0) hasGround = true;
+        }
+        if(nodes.isEmpty()) {
+            System.out.println("El archivo no contiene un circuito.");
+        } else if(!hasGround) {
+            System.out.println("Debe existir un nodo con ID 0 (tierra).");
+        } else {
+            try {
+                System.out.print(formatResults(incremental.solveFull(nodes, elements), nodes, elements));
+            } catch(Exception ex) {
+                System.out.println("Error al resolver el circuito: " + ex.getMessage());
+            }
+        }
+        printSensitivities(sensOutput, nodes, elements, incremental);
+        if(tranFile != null) {
+            long start = System.nanoTime();
+            try (Writer out = new BufferedWriter(new FileWriter(tranFile), 1 << 16)) {
+                runTransient(nodes, elements, tranStep, tranSteps, trapezoidal, every, out);
+                System.out.printf("Transitorio: %d pasos escritos en %s (%.2f s)%n",
+                    tranSteps, tranFile.getName(), (System.nanoTime() - start) / 1e9);
+            } catch(Exception ex) {
+                System.out.println("Error en el análisis transitorio: " + ex.getMessage());
+            }
+        }
+        if(batchFile != null) {
+            try (Writer out = new BufferedWriter(new FileWriter(batchFile), 1 << 16)) {
+                double[][] values = readBatchValues(batchValues, netlist);
+                int count = 0;
+                for(double[] v : values) if(v != null) count = v.length;
+                long start = System.nanoTime();
+                int fallbacks = runBatch(nodes, elements, values, count, out);
+                System.out.printf("Lote: %d instancias escritas en %s (%.3f s, %d resueltas con pivoteo aparte)%n",
+                    count, batchFile.getName(), (System.nanoTime() - start) / 1e9, fallbacks);
+            } catch(Exception ex) {
+                System.out.println("Error en la resolución por lotes: " + ex.getMessage());
+            }
+        }
+        if(acFile != null) {
+            long start = System.nanoTime();
+            try (Writer out = new BufferedWriter(new FileWriter(acFile), 1 << 16)) {
+                String note = runAcSweep(nodes, elements, acStart, acStop, acPoints, threads, out);
+                System.out.printf("Barrido AC: %d frecuencias escritas en %s (%.2f s, %d hilos)%n",
+                    acPoints, acFile.getName(), (System.nanoTime() - start) / 1e9, threads);
+                System.out.print(note);
+            } catch(Exception ex) {
+                System.out.println("Error en el análisis AC: " + ex.getMessage());
+            }
+        }
+        if(!watch) return;
+
+        File watched = file;
+        String sens = sensOutput;
+        AtomicReference<Circuit> current = new AtomicReference<>(loaded);
+        NetlistWatcher watcher = new NetlistWatcher(file, WATCH_DEBOUNCE_MS, () -> {
+            try {
+                Reload r = applyNetlistChange(parseNetlist(watched, null), current.get(), incremental);
+                if(r != null) {
+                    current.set(r.circuit);
+                    System.out.print(r.report);
+                    printSensitivities(sens, r.circuit.nodes(), r.circuit.elements(), incremental);
+                }
+            } catch(Exception ex) {
+                System.out.println("Error al leer el archivo: " + ex.getMessage());
+            }
+            System.out.flush();
+        });
+        System.out.println("Vigilando " + file.getName() + " (Ctrl+C para terminar)");
+        watcher.await();
+    }
+
+    // Resuelve el circuito (los nodos unidos por cables se fusionan en el análisis, sin copiar nada).
+    static CircuitSolver solveCircuit(List<Node> nodes, List<CircuitElement> elements) throws Exception {
+        CircuitSolver solver = new CircuitSolver(nodes, elements);
+        solver.solveCircuit();
+        return solver;
+    }
+
+    /**
+     * Servicio local para resolver circuitos sin arrancar una JVM por circuito:
+     *   java CircuitSolverGUI --serve [--port 8765] [--workers N] [--queue 256] [--batch 32]
+     * Recibe por POST un circuito en el formato de archivo (NODO/ELEMENTO) o en JSON:
+     *   {"nodos":[{"id":0,"x":0,"y":0},...],"elementos":[{"tipo":"R","nodo1":0,"nodo2":1,"valor":"4.7k"},...]}
+     * o un lote como arreglo JSON de circuitos, cuyos resultados vuelven de a uno por línea a medida
+     * que se resuelven: {"indice":0,"voltajes":{...}} o {"indice":1,"error":"..."}.
+     * Las solicitudes van a una cola acotada. Un despachador toma las pendientes (hasta --batch) y las
+     * agrupa por matriz del sistema: cada grupo va a un trabajador libre, que factoriza una sola vez y
+     * resuelve las demás solicitudes del grupo cambiando sólo el lado derecho (los circuitos idénticos
+     * comparten además la respuesta). Los grupos distintos se resuelven en paralelo.
+     * Si la cola está llena se responde 503 con Retry-After para que el cliente reduzca el ritmo.
+     */
+    static class SolverService implements Closeable {
+        static final int DEFAULT_PORT = 8765;
+
+        // Solicitud pendiente: el circuito ya leído y la respuesta que completará un trabajador.
+        private static class SolveJob {
+            final String body;
+            final Netlist netlist;
+            final boolean json;
+            final CompletableFuture<String> result = new CompletableFuture<>();
+            SolveJob(String body, Netlist netlist, boolean json) {
+                this.body = body;
+                this.netlist = netlist;
+                this.json = json;
+            }
+        }
+
+        private final HttpServer server;
+        private final ExecutorService connections;
+        private final ArrayBlockingQueue<SolveJob> queue;
+        private final ExecutorService workers;
+        private final Semaphore freeWorkers;
+        private final int maxBatch;
+        private final Thread dispatcher;
+        private final AtomicInteger rejected = new AtomicInteger();
+
+        SolverService(int port, int nWorkers, int queueCapacity, int maxBatch) throws IOException {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.maxBatch = maxBatch;
+            this.workers = Executors.newFixedThreadPool(nWorkers);
+            this.freeWorkers = new Semaphore(nWorkers);
+            // Hilos para las conexiones: esperan E/S y la respuesta, no hacen el cálculo. Alcanzan para que
+            // cada solicitud en cola o en cálculo tenga el suyo; las conexiones que sobran esperan un hilo
+            // libre en la cola del ejecutor, y los hilos ociosos terminan.
+            int nConnections = queueCapacity + nWorkers;
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(nConnections, nConnections, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, "conexion-servicio"));
+            pool.allowCoreThreadTimeOut(true);
+            this.connections = pool;
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/resolver", this::handle);
+            server.setExecutor(connections);
+            dispatcher = new Thread(this::dispatchLoop, "despachador-lotes");
+            dispatcher.setDaemon(true);
+        }
+
+        static void run(String[] args) throws Exception {
+            int port = DEFAULT_PORT;
+            int nWorkers = Runtime.getRuntime().availableProcessors();
+            int queueCapacity = 256;
+            int maxBatch = 32;
+            String usage = "Uso: java CircuitSolverGUI --serve [--port N] [--workers N] [--queue N] [--batch N]";
+            String error = null;
+            try {
+                for(int i=1; i<args.length && error == null; i+=2) {
+                    if(!Arrays.asList("--port", "--workers", "--queue", "--batch").contains(args[i])) {
+                        error = "Opción desconocida: " + args[i];
+                    } else if(i+1 >= args.length) {
+                        error = "Falta el valor de " + args[i];
+                    } else {
+                        int value = Integer.parseInt(args[i+1]);
+                        if(args[i].equals("--port")) port = value;
+                        else if(args[i].equals("--workers")) nWorkers = value;
+                        else if(args[i].equals("--queue")) queueCapacity = value;
+                        else maxBatch = value;
                     }
                 }
+            } catch(NumberFormatException ex) {
+                error = "Valor inválido en los argumentos: " + ex.getMessage();
             }
-            
-            // Sustitución hacia atrás
-            double[] x = new double[n];
-            for (int i=n-1; i>=0; i--){
-                x[i] = aug[i][n];
-                for (int j=i+1; j<n; j++){
-                    x[i] -= aug[i][j] * x[j];
+            if(error == null && (port < 0 || port > 65535)) error = "--port debe estar entre 0 y 65535.";
+            if(error == null && (nWorkers < 1 || queueCapacity < 1 || maxBatch < 1))
+                error = "--workers, --queue y --batch deben ser al menos 1.";
+            if(error != null) {
+                System.err.println(error);
+                System.err.println(usage);
+                System.exit(2);
+            }
+            SolverService service = new SolverService(port, nWorkers, queueCapacity, maxBatch);
+            service.start();
+            System.out.println("Servicio escuchando en http://localhost:" + service.getPort() + "/resolver ("
+                + nWorkers + " trabajadores, cola " + queueCapacity + ", lotes de hasta " + maxBatch + ")");
+            service.dispatcher.join();
+        }
+
+        void start() {
+            dispatcher.start();
+            server.start();
+        }
+
+        int getPort() {
+            return server.getAddress().getPort();
+        }
+
+        // Toma la primera solicitud pendiente más las que ya estén en cola (hasta maxBatch), las agrupa
+        // por matriz y entrega cada grupo a un trabajador libre. Si no hay trabajadores libres la cola se llena.
+        private void dispatchLoop() {
+            try {
+                while(true) {
+                    SolveJob first = queue.take();
+                    ArrayList<SolveJob> batch = new ArrayList<>();
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatch - 1);
+                    LinkedHashMap<String, ArrayList<SolveJob>> groups = new LinkedHashMap<>();
+                    for(SolveJob job : batch) {
+                        groups.computeIfAbsent(matrixKey(job), k -> new ArrayList<>()).add(job);
+                    }
+                    for(ArrayList<SolveJob> group : groups.values()) {
+                        freeWorkers.acquire();
+                        workers.execute(() -> {
+                            try {
+                                solveGroup(group);
+                            } finally {
+                                freeWorkers.release();
+                            }
+                        });
+                    }
                 }
+            } catch(InterruptedException ex) {
+                // Servicio detenido
             }
-            return x;
         }
-    }
 
-     // Clase para representar un cable (conexión ideal, resistencia cero)
-    static class Cable extends CircuitElement {
-        public Cable(Node node1, Node node2) {
-            super(node1, node2, 0.0);
+        // Clave de la matriz del sistema: nodos y elementos en orden, con los valores salvo los de las
+        // fuentes (que sólo van al lado derecho). Un circuito no lineal forma siempre su propio grupo.
+        private static String matrixKey(SolveJob job) {
+            StringBuilder sb = new StringBuilder();
+            for(Node n : job.netlist.nodes) sb.append(n.id).append(' ');
+            for(CircuitElement ce : job.netlist.elements) {
+                if(ce instanceof NonlinearElement) return "no lineal\n" + job.body;
+                sb.append('|').append(typeCode(ce)).append(' ').append(ce.node1.id).append(' ').append(ce.node2.id);
+                if(!(ce instanceof VoltageSource) && !(ce instanceof CurrentSource)) sb.append(' ').append(ce.value);
+            }
+            return sb.toString();
         }
-        @Override
-        public String getFormattedValue() {
-            return "Cable";
+
+        /**
+         * Resuelve un grupo con la misma matriz: la primera solicitud se factoriza y en las siguientes sólo
+         * se reemplazan las fuentes y se vuelve a sustituir. Las solicitudes con el mismo cuerpo que una ya
+         * resuelta reciben la misma respuesta.
+         */
+        private static void solveGroup(ArrayList<SolveJob> group) {
+            HashMap<String, SolveJob> solved = new HashMap<>();
+            CircuitSolver shared = null;
+            ArrayList<CircuitElement> sharedElements = null;
+            for(SolveJob job : group) {
+                SolveJob same = solved.get(job.body);
+                if(same != null) {
+                    same.result.whenComplete((r, ex) -> {
+                        if(ex != null) job.result.completeExceptionally(ex);
+                        else job.result.complete(r);
+                    });
+                    continue;
+                }
+                solved.put(job.body, job);
+                try {
+                    List<CircuitElement> elements = job.netlist.elements;
+                    if(shared != null && shared.canReuseFactorization()) {
+                        for(int e=0; e<elements.size(); e++) {
+                            CircuitElement old = sharedElements.get(e);
+                            if(old.value != elements.get(e).value) {
+                                shared.replaceElement(old, elements.get(e));
+                                sharedElements.set(e, elements.get(e));
+                            }
+                        }
+                        shared.resolve();
+                    } else {
+                        shared = solveCircuit(job.netlist.nodes, elements);
+                        sharedElements = new ArrayList<>(elements);
+                    }
+                    job.result.complete(job.json
+                        ? resultsToJson(shared, job.netlist)
+                        : formatResults(shared, job.netlist.nodes, elements, false));
+                } catch(Exception ex) {
+                    shared = null;
+                    job.result.completeExceptionally(ex);
+                }
+            }
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            try {
+                if(!exchange.getRequestMethod().equals("POST")) {
+                    send(exchange, 405, "Use POST con el circuito en el cuerpo.\n");
+                    return;
+                }
+                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                if(body.trim().startsWith("[")) {
+                    handleBatch(exchange, body);
+                    return;
+                }
+                boolean json = body.trim().startsWith("{");
+                Netlist netlist;
+                try {
+                    netlist = json ? parseJsonNetlist(body) : parseNetlist(new StringReader(body), null);
+                } catch(Exception ex) {
+                    send(exchange, 400, "Error al leer el circuito: " + ex.getMessage() + "\n");
+                    return;
+                }
+                if(!hasGround(netlist)) {
+                    send(exchange, 400, "Debe existir un nodo con ID 0 (tierra).\n");
+                    return;
+                }
+                SolveJob job = new SolveJob(body, netlist, json);
+                if(!queue.offer(job)) {
+                    rejected.incrementAndGet();
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    send(exchange, 503, "Servicio saturado, intente más tarde.\n");
+                    return;
+                }
+                String result;
+                try {
+                    result = job.result.get();
+                } catch(ExecutionException ex) {
+                    send(exchange, 422, "Error al resolver el circuito: " + ex.getCause().getMessage() + "\n");
+                    return;
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    send(exchange, 503, "Servicio detenido.\n");
+                    return;
+                }
+                send(exchange, 200, json ? "application/json" : "text/plain; charset=utf-8", result);
+            } finally {
+                exchange.close();
+            }
         }
-    }
-    
-    // Método para fusionar nodos conectados solo por cables (C)
-private void mergeCableConnectedNodes(ArrayList<Node> nodes, ArrayList<CircuitElement> elements) {
-    HashMap<Integer, Integer> parent = new HashMap<>();
-    for (Node n : nodes) parent.put(n.id, n.id);
 
-    java.util.function.Function<Integer, Integer> find = new java.util.function.Function<Integer, Integer>() {
-        public Integer apply(Integer x) {
-            if (!parent.get(x).equals(x))
-                parent.put(x, this.apply(parent.get(x)));
-            return parent.get(x);
+        /**
+         * Lote en una sola solicitud: un arreglo JSON de circuitos. Cada circuito entra en la cola como una
+         * solicitud más (y se agrupa por matriz con las demás), y su resultado se escribe apenas está listo
+         * como una línea JSON con su índice en el arreglo (NDJSON, en orden de finalización). Un circuito
+         * que no entra en la cola llena, o sin tierra, recibe el error en su línea.
+         */
+        private void handleBatch(HttpExchange exchange, String body) throws IOException {
+            ArrayList<Netlist> netlists = new ArrayList<>();
+            try {
+                for(Object circuit : (List<?>) new JsonReader(body).readValue()) netlists.add(jsonNetlist(circuit));
+            } catch(Exception ex) {
+                send(exchange, 400, "Error al leer el lote: " + ex.getMessage() + "\n");
+                return;
+            }
+            LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<>();
+            for(int i=0; i<netlists.size(); i++) {
+                int index = i;
+                Netlist netlist = netlists.get(i);
+                if(!hasGround(netlist)) {
+                    lines.add(errorLine(index, "Debe existir un nodo con ID 0 (tierra)."));
+                    continue;
+                }
+                SolveJob job = new SolveJob(netlistText(netlist, 1, false), netlist, true);
+                if(!queue.offer(job)) {
+                    rejected.incrementAndGet();
+                    lines.add(errorLine(index, "Servicio saturado, intente más tarde."));
+                    continue;
+                }
+                // resultsToJson sólo tiene saltos de línea entre las entradas, así que se puede unir en una línea
+                job.result.whenComplete((result, ex) -> lines.add(ex == null
+                    ? "{\"indice\":" + index + "," + result.replace("\n", "").substring(1)
+                    : errorLine(index, "Error al resolver el circuito: " + ex.getMessage())));
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                for(int k=0; k<netlists.size(); k++) {
+                    out.write((lines.take() + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
         }
-    };
 
-    java.util.function.BiConsumer<Integer, Integer> union = (a, b) -> {
-        int pa = find.apply(a);
-        int pb = find.apply(b);
-        if (pa != pb) parent.put(pa, pb);
-    };
+        private static String errorLine(int index, String message) {
+            return "{\"indice\":" + index + ",\"error\":\"" + message.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", " ") + "\"}";
+        }
 
-    for (CircuitElement elem : elements) {
-        if (elem instanceof Cable) {
-            union.accept(elem.node1.id, elem.node2.id);
+        private static boolean hasGround(Netlist netlist) {
+            for(Node n : netlist.nodes) {
+                if(n.id == 0) return true;
+            }
+            return false;
+        }
+
+        private static void send(HttpExchange exchange, int status, String text) throws IOException {
+            send(exchange, status, "text/plain; charset=utf-8", text);
+        }
+
+        private static void send(HttpExchange exchange, int status, String contentType, String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(status, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+
+        int getRejectedCount() {
+            return rejected.get();
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+            dispatcher.interrupt();
+            workers.shutdownNow();
+            connections.shutdownNow();
         }
     }
 
-    HashMap<Integer, Node> repNode = new HashMap<>();
-    for (Node n : nodes) {
-        int repId = find.apply(n.id);
-        if (!repNode.containsKey(repId)) {
-            repNode.put(repId, n);
+    // Lee un circuito en JSON: {"nodos":[{"id","x","y"}], "elementos":[{"tipo","nodo1","nodo2","valor"}]}
+    static Netlist parseJsonNetlist(String text) {
+        return jsonNetlist(new JsonReader(text).readValue());
+    }
+
+    // Circuito a partir del objeto JSON ya leído (el de una solicitud o uno de los de un lote).
+    @SuppressWarnings("unchecked")
+    static Netlist jsonNetlist(Object root) {
+        if(!(root instanceof Map)) throw new IllegalArgumentException("Se esperaba un objeto JSON");
+        Map<String, Object> obj = (Map<String, Object>) root;
+        Netlist netlist = new Netlist();
+        HashMap<Integer, Node> idToNode = new HashMap<>();
+        for(Object o : (List<Object>) obj.getOrDefault("nodos", Collections.emptyList())) {
+            Map<String, Object> n = (Map<String, Object>) o;
+            Node node = new Node(jsonInt(n, "id"), jsonInt(n, "x"), jsonInt(n, "y"));
+            netlist.nodes.add(node);
+            idToNode.putIfAbsent(node.id, node);
         }
+        for(Object o : (List<Object>) obj.getOrDefault("elementos", Collections.emptyList())) {
+            Map<String, Object> e = (Map<String, Object>) o;
+            Node n1 = idToNode.get(jsonInt(e, "nodo1"));
+            Node n2 = idToNode.get(jsonInt(e, "nodo2"));
+            if(n1 == null || n2 == null)
+                throw new IllegalArgumentException("nodo referenciado en elemento no existe");
+            String tipo = String.valueOf(e.get("tipo")).toUpperCase();
+            Object v = e.getOrDefault("valor", 0.0);
+            double valor = (v instanceof Double) ? (Double) v : parseValue(String.valueOf(v));
+            CircuitElement elem;
+            if(tipo.equals("R")) elem = new Resistor(n1, n2, valor);
+            else if(tipo.equals("V")) elem = new VoltageSource(n1, n2, valor);
+            else if(tipo.equals("I")) elem = new CurrentSource(n1, n2, valor);
+            else if(tipo.equals("C")) elem = new Cable(n1, n2);
+            else if(tipo.equals("CAP")) elem = new Capacitor(n1, n2, valor);
+            else if(tipo.equals("L")) elem = new Inductor(n1, n2, valor);
+            else if(tipo.equals("D")) elem = new Diode(n1, n2, valor);
+            else throw new IllegalArgumentException("Tipo de elemento inválido: " + tipo);
+            netlist.elements.add(elem);
+            netlist.elementOrdinals.add(netlist.elements.size());
+        }
+        return netlist;
     }
 
-    for (CircuitElement elem : elements) {
-        elem.node1 = repNode.get(find.apply(elem.node1.id));
-        elem.node2 = repNode.get(find.apply(elem.node2.id));
+    private static int jsonInt(Map<String, Object> obj, String key) {
+        Object v = obj.get(key);
+        if(!(v instanceof Double)) throw new IllegalArgumentException("Falta el campo numérico \"" + key + "\"");
+        return (int) Math.round((Double) v);
     }
 
-    ArrayList<Node> newNodes = new ArrayList<>(repNode.values());
-    nodes.clear();
-    nodes.addAll(newNodes);
-}
+    // Voltajes de cada nodo original en JSON: {"voltajes":{"0":0.0,"1":5.0,...}}
+    static String resultsToJson(CircuitSolver solver, Netlist netlist) {
+        HashMap<Integer,Double> nodeVoltages = solver.getNodeVoltages();
+        HashMap<Integer,Integer> repIds = representativeIds(netlist.nodes, netlist.elements);
+        StringBuilder sb = new StringBuilder("{\"voltajes\":{");
+        boolean first = true;
+        for(Node n : netlist.nodes) {
+            Double v = nodeVoltages.get(repIds.get(n.id));
+            if(!first) sb.append(',');
+            first = false;
+            sb.append("\n\"").append(n.id).append("\":").append(v == null ? "null" : String.valueOf(v));
+        }
+        return sb.append("\n}}\n").toString();
+    }
 
-private Integer findRepresentativeId(int nodeId, ArrayList<Node> allNodes, ArrayList<CircuitElement> allElements) {
-    HashMap<Integer, Integer> parent = new HashMap<>();
-    for (Node n : allNodes) parent.put(n.id, n.id); // CORREGIDO
+    /**
+     * Lector JSON mínimo (objetos, arreglos, cadenas, números, true/false/null) para el servicio.
+     * Los números se devuelven como Double, los objetos como Map y los arreglos como List.
+     */
+    static class JsonReader {
+        private final String text;
+        private int pos = 0;
 
-    java.util.function.Function<Integer, Integer> find = new java.util.function.Function<Integer, Integer>() {
-        public Integer apply(Integer x) {
-            if (!parent.containsKey(x)) return x; // Si no existe, regresa el mismo id
-            if (!parent.get(x).equals(x))
-                parent.put(x, this.apply(parent.get(x)));
-            return parent.get(x);
+        JsonReader(String text) {
+            this.text = text;
         }
-    };
 
-    java.util.function.BiConsumer<Integer, Integer> union = (a, b) -> {
-        int pa = find.apply(a);
-        int pb = find.apply(b);
-        if (pa != pb) parent.put(pa, pb);
-    };
+        Object readValue() {
+            skipSpaces();
+            if(pos >= text.length()) throw error("fin inesperado");
+            char c = text.charAt(pos);
+            if(c == '{') return readObject();
+            if(c == '[') return readArray();
+            if(c == '"') return readString();
+            if(text.startsWith("true", pos)) { pos += 4; return Boolean.TRUE; }
+            if(text.startsWith("false", pos)) { pos += 5; return Boolean.FALSE; }
+            if(text.startsWith("null", pos)) { pos += 4; return null; }
+            return readNumber();
+        }
 
-    for (CircuitElement elem : allElements) {
-        if (elem instanceof Cable) {
-            union.accept(elem.node1.id, elem.node2.id);
+        private Map<String, Object> readObject() {
+            LinkedHashMap<String, Object> obj = new LinkedHashMap<>();
+            pos++;
+            skipSpaces();
+            if(peek() == '}') { pos++; return obj; }
+            while(true) {
+                skipSpaces();
+                if(peek() != '"') throw error("se esperaba una clave");
+                String key = readString();
+                skipSpaces();
+                expect(':');
+                obj.put(key, readValue());
+                skipSpaces();
+                if(peek() == ',') { pos++; continue; }
+                expect('}');
+                return obj;
+            }
+        }
+
+        private List<Object> readArray() {
+            ArrayList<Object> list = new ArrayList<>();
+            pos++;
+            skipSpaces();
+            if(peek() == ']') { pos++; return list; }
+            while(true) {
+                list.add(readValue());
+                skipSpaces();
+                if(peek() == ',') { pos++; continue; }
+                expect(']');
+                return list;
+            }
+        }
+
+        private String readString() {
+            StringBuilder sb = new StringBuilder();
+            pos++;
+            while(pos < text.length()) {
+                char c = text.charAt(pos++);
+                if(c == '"') return sb.toString();
+                if(c == '\\' && pos < text.length()) {
+                    char e = text.charAt(pos++);
+                    switch(e) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'u':
+                            if(pos + 4 > text.length()) throw error("escape inválido");
+                            sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                            pos += 4;
+                            break;
+                        default: sb.append(e);
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+            throw error("cadena sin cerrar");
+        }
+
+        private Double readNumber() {
+            int start = pos;
+            while(pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) pos++;
+            if(start == pos) throw error("valor inesperado");
+            return Double.valueOf(text.substring(start, pos));
+        }
+
+        private void skipSpaces() {
+            while(pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+        }
+
+        private char peek() {
+            return pos < text.length() ? text.charAt(pos) : '\0';
+        }
+
+        private void expect(char c) {
+            if(peek() != c) throw error("se esperaba '" + c + "'");
+            pos++;
+        }
+
+        private IllegalArgumentException error(String msg) {
+            return new IllegalArgumentException("JSON inválido en la posición " + pos + ": " + msg);
         }
     }
-    return find.apply(nodeId);
-}
+
+    /**
+     * Cliente de prueba de carga para el servicio local:
+     *   java CircuitSolverGUI --loadtest archivo.txt [--port 8765] [--clients 16] [--requests 2000]
+     *        [--variantes N] [--solo-fuentes]
+     * Cada solicitud envía una variante del circuito con los valores escalados, de modo que hay N
+     * cuerpos distintos (por omisión uno por solicitud) y el servicio no puede responder todas por
+     * duplicado. Con --solo-fuentes sólo cambian las fuentes: la matriz es la misma y el servicio
+     * puede compartir la factorización. Las solicitudes rechazadas (503) se cuentan aparte y no entran
+     * en los percentiles de latencia.
+     */
+    private static void runLoadTest(String[] args) throws Exception {
+        String usage = "Uso: java CircuitSolverGUI --loadtest archivo.txt [--port N] [--clients N] [--requests N]"
+            + " [--variantes N] [--solo-fuentes]";
+        File file = null;
+        int port = SolverService.DEFAULT_PORT;
+        int clients = 16;
+        int requests = 2000;
+        int variants = -1;
+        boolean sourcesOnly = false;
+        try {
+            for(int i=1; i<args.length; i++) {
+                if(args[i].equals("--port")) port = Integer.parseInt(args[++i]);
+                else if(args[i].equals("--clients")) clients = Integer.parseInt(args[++i]);
+                else if(args[i].equals("--requests")) requests = Integer.parseInt(args[++i]);
+                else if(args[i].equals("--variantes")) variants = Integer.parseInt(args[++i]);
+                else if(args[i].equals("--solo-fuentes")) sourcesOnly = true;
+                else file = new File(args[i]);
+            }
+        } catch(NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            file = null;
+        }
+        if(variants < 0) variants = requests;
+        if(file == null || clients < 1 || requests < 1 || variants < 1) {
+            System.err.println(usage);
+            System.err.println("--clients, --requests y --variantes deben ser enteros de al menos 1.");
+            System.exit(2);
+        }
+        Netlist netlist = parseNetlist(file, null);
+        URI uri = URI.create("http://localhost:" + port + "/resolver");
+        HttpRequest[] bodies = new HttpRequest[Math.min(variants, requests)];
+        for(int v=0; v<bodies.length; v++) {
+            String body = netlistText(netlist, 1 + v * 1e-3, sourcesOnly);
+            bodies[v] = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofString(body)).build();
+        }
+        HttpClient client = HttpClient.newHttpClient();
+
+        int total = requests;
+        long[] latencies = new long[total];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger ok = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        long start = System.nanoTime();
+        for(int c=0; c<clients; c++) {
+            pool.execute(() -> {
+                int i;
+                while((i = next.getAndIncrement()) < total) {
+                    long t0 = System.nanoTime();
+                    try {
+                        HttpResponse<String> response = client.send(bodies[i % bodies.length],
+                            HttpResponse.BodyHandlers.ofString());
+                        if(response.statusCode() == 200) {
+                            // Sólo las respuestas correctas entran en los percentiles
+                            latencies[ok.getAndIncrement()] = System.nanoTime() - t0;
+                        }
+                        else if(response.statusCode() == 503) rejected.incrementAndGet();
+                        else failed.incrementAndGet();
+                    } catch(Exception ex) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int answered = ok.get();
+        System.out.printf("Solicitudes: %d con %d clientes y %d circuitos distintos%s%n",
+            total, clients, bodies.length, sourcesOnly ? " (sólo cambian las fuentes)" : "");
+        System.out.printf("  resueltas: %d, rechazadas (503): %d, con error: %d%n",
+            answered, rejected.get(), failed.get());
+        System.out.printf("Rendimiento: %.1f resueltas/s (%.1f solicitudes/s en total) en %.2f s%n",
+            answered / seconds, total / seconds, seconds);
+        if(answered == 0) {
+            System.out.println("Sin solicitudes resueltas: no hay latencias que informar.");
+            return;
+        }
+        long[] solved = Arrays.copyOf(latencies, answered);
+        Arrays.sort(solved);
+        System.out.printf("Latencia de las resueltas (ms): p50 %.2f, p90 %.2f, p99 %.2f, máx %.2f%n",
+            percentile(solved, 0.50), percentile(solved, 0.90), percentile(solved, 0.99),
+            solved[answered - 1] / 1e6);
+    }
+
+    // Texto NODO/ELEMENTO del circuito con los valores multiplicados por factor (sólo los de las
+    // fuentes si sourcesOnly). Los cables no tienen valor y se escriben con 0.
+    static String netlistText(Netlist netlist, double factor, boolean sourcesOnly) {
+        StringBuilder sb = new StringBuilder();
+        for(Node n : netlist.nodes) {
+            sb.append("NODO ").append(n.id).append(' ').append(n.x).append(' ').append(n.y).append('\n');
+        }
+        for(CircuitElement ce : netlist.elements) {
+            boolean source = (ce instanceof VoltageSource) || (ce instanceof CurrentSource);
+            double value = (ce instanceof Cable) ? 0 : ce.value;
+            if(source || !sourcesOnly) value *= factor;
+            sb.append("ELEMENTO ").append(typeCode(ce)).append(' ').append(ce.node1.id).append(' ')
+              .append(ce.node2.id).append(' ').append(value).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Percentil q (0..1) de un arreglo ordenado de latencias en nanosegundos, en milisegundos.
+    private static double percentile(long[] sorted, double q) {
+        int idx = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, idx)] / 1e6;
+    }
 
     // Método main para ejecutar el programa
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0 && args[0].equals("--headless")) {
+            runHeadless(args);
+            return;
+        }
+        if(args.length > 0 && args[0].equals("--serve")) {
+            SolverService.run(args);
+            return;
+        }
+        if(args.length > 0 && args[0].equals("--loadtest")) {
+            runLoadTest(args);
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             CircuitSolverGUI gui = new CircuitSolverGUI();
             gui.setVisible(true);
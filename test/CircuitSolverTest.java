@@ -0,0 +1,1198 @@
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pruebas del solver (sin dependencias externas). Se compilan junto con el programa y se corren con:
+ *
+ *   javac -encoding UTF-8 -d out CircuitSolverGUI.java test/CircuitSolverTest.java
+ *   java -cp out CircuitSolverTest [nombre ...]
+ *
+ * Cada método estático "test..." es una prueba; con nombres como argumentos se corren sólo esas.
+ * Las comparaciones se hacen contra una referencia independiente (residuo de KCL, solución densa,
+ * diferencias finitas o fórmulas cerradas), no contra la salida de una versión anterior.
+ */
+public class CircuitSolverTest {
+
+    public static void main(String[] args) throws Exception {
+        Set<String> only = new HashSet<>(Arrays.asList(args));
+        ArrayList<Method> tests = new ArrayList<>();
+        for (Method m : CircuitSolverTest.class.getDeclaredMethods()) {
+            if (m.getName().startsWith("test") && Modifier.isStatic(m.getModifiers()) && m.getParameterCount() == 0
+                    && (only.isEmpty() || only.contains(m.getName()))) {
+                tests.add(m);
+            }
+        }
+        tests.sort(Comparator.comparing(Method::getName));
+        int failed = 0;
+        for (Method m : tests) {
+            long start = System.nanoTime();
+            try {
+                m.invoke(null);
+                System.out.printf("OK     %s (%.2f s)%n", m.getName(), (System.nanoTime() - start) / 1e9);
+            } catch (InvocationTargetException ex) {
+                failed++;
+                System.out.println("FALLA  " + m.getName() + ": " + ex.getCause());
+                ex.getCause().printStackTrace(System.out);
+            }
+        }
+        System.out.println(tests.size() - failed + " de " + tests.size() + " pruebas correctas.");
+        if (failed > 0) System.exit(1);
+    }
+
+    // ---- Utilidades ----
+
+    static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    static void assertClose(double expected, double actual, double tolerance, String message) {
+        if (!(Math.abs(expected - actual) <= tolerance))
+            throw new AssertionError(message + ": se esperaba " + expected + " y se obtuvo " + actual);
+    }
+
+    static double maxAbs(double[] v) {
+        double max = 0;
+        for (double value : v) max = Math.max(max, Math.abs(value));
+        return max;
+    }
+
+    // Norma infinito de A x - b.
+    static double residual(double[][] A, double[] x, double[] b) {
+        double max = 0;
+        for (int i=0; i<A.length; i++) {
+            double sum = -b[i];
+            for (int j=0; j<x.length; j++) sum += A[i][j] * x[j];
+            max = Math.max(max, Math.abs(sum));
+        }
+        return max;
+    }
+
+    static CircuitSolverGUI.Netlist netlist(String text) throws IOException {
+        return CircuitSolverGUI.parseNetlist(new StringReader(text), null);
+    }
+
+    static CircuitSolverGUI.CircuitSolver solve(CircuitSolverGUI.Netlist netlist) throws Exception {
+        return CircuitSolverGUI.solveCircuit(netlist.nodes, netlist.elements);
+    }
+
+    /**
+     * Red de resistores al azar con fuentes de corriente: cada nodo va a tierra por un resistor y se une
+     * con "links" nodos elegidos al azar, así que el ancho de banda es grande aun después de reordenar.
+     */
+    static String randomNetwork(int nodes, int links, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder("NODO 0 0 0\n");
+        for (int i=1; i<=nodes; i++) sb.append("NODO ").append(i).append(" 0 0\n");
+        for (int i=1; i<=nodes; i++) {
+            sb.append("ELEMENTO R ").append(i).append(" 0 ").append(1 + 9 * random.nextDouble()).append('\n');
+            for (int l=0; l<links; l++) {
+                int j = 1 + random.nextInt(nodes);
+                if (j != i) sb.append("ELEMENTO R ").append(i).append(' ').append(j).append(' ')
+                              .append(1 + 99 * random.nextDouble()).append('\n');
+            }
+            if (random.nextInt(4) == 0)
+                sb.append("ELEMENTO I 0 ").append(i).append(' ').append(random.nextDouble()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Error de KCL (norma infinito, en A) de las tensiones calculadas en un circuito de resistores, diodos
+     * y fuentes de corriente: en cada nodo la suma de las corrientes que salen debe ser cero.
+     */
+    static double kclError(CircuitSolverGUI.Netlist netlist, Map<Integer, Double> voltages) {
+        HashMap<Integer, Double> sum = new HashMap<>();
+        for (CircuitSolverGUI.CircuitElement ce : netlist.elements) {
+            double current;
+            if (ce instanceof CircuitSolverGUI.Resistor) {
+                current = (voltages.get(ce.node1.id) - voltages.get(ce.node2.id)) / ce.value;
+            } else if (ce instanceof CircuitSolverGUI.CurrentSource) {
+                current = ce.value;
+            } else if (ce instanceof CircuitSolverGUI.Diode) {
+                double v = voltages.get(ce.node1.id) - voltages.get(ce.node2.id);
+                current = ce.value * (Math.exp(v / CircuitSolverGUI.Diode.THERMAL_VOLTAGE) - 1);
+            } else {
+                throw new IllegalArgumentException("kclError sólo admite resistores, diodos y fuentes de corriente");
+            }
+            sum.merge(ce.node1.id, current, Double::sum);
+            sum.merge(ce.node2.id, -current, Double::sum);
+        }
+        double max = 0;
+        for (Map.Entry<Integer, Double> e : sum.entrySet()) {
+            if (e.getKey() != 0) max = Math.max(max, Math.abs(e.getValue()));
+        }
+        return max;
+    }
+
+    // ---- LUFactorization y almacenamiento fuera del heap ----
+
+    public static void testLUFactorizationResidual() throws Exception {
+        Random random = new Random(1);
+        int n = 60;
+        double[][] A = new double[n][n];
+        for (int i=0; i<n; i++) {
+            for (int j=0; j<n; j++) A[i][j] = random.nextGaussian();
+        }
+        double[] b = new double[n];
+        for (int i=0; i<n; i++) b[i] = random.nextGaussian();
+        CircuitSolverGUI.LUFactorization lu = CircuitSolverGUI.LUFactorization.factor(A);
+        double[] x = lu.solve(b);
+        check(residual(A, x, b) < 1e-10 * maxAbs(b) * n, "residuo de A x = b: " + residual(A, x, b));
+
+        double[][] At = new double[n][n];
+        for (int i=0; i<n; i++) {
+            for (int j=0; j<n; j++) At[i][j] = A[j][i];
+        }
+        double[] y = lu.solveTranspose(b);
+        check(residual(At, y, b) < 1e-10 * maxAbs(b) * n, "residuo de A^T y = b: " + residual(At, y, b));
+    }
+
+    /**
+     * Matriz en banda no simétrica con numeración mezclada (RCM debe recuperar la banda) y ceros en
+     * parte de la diagonal (la factorización tiene que intercambiar filas): A x = b y A^T y = c deben
+     * tener residuo chico y coincidir con la LU densa.
+     */
+    public static void testBandedLUMatchesDense() throws Exception {
+        Random random = new Random(4);
+        int n = 500, halfBand = 4;
+        int[] label = new int[n];
+        for (int i=0; i<n; i++) label[i] = i;
+        for (int i=n-1; i>0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = label[i]; label[i] = label[j]; label[j] = t;
+        }
+        double[][] A = new double[n][n];
+        for (int i=0; i<n; i++) {
+            for (int j=Math.max(0, i - halfBand); j<=Math.min(n - 1, i + halfBand); j++) {
+                if (i == j ? i % 5 == 0 : random.nextDouble() < 0.3) continue;
+                A[label[i]][label[j]] = random.nextGaussian();
+            }
+        }
+        Consumer<CircuitSolverGUI.MatrixStamp> stamps = stamp -> {
+            for (int i=0; i<n; i++) {
+                for (int j=0; j<n; j++) if (A[i][j] != 0) stamp.add(i, j, A[i][j]);
+            }
+        };
+        CircuitSolverGUI.BandMatrix band = CircuitSolverGUI.BandMatrix.forPattern(n, stamps);
+        check(band != null, "la matriz debe tratarse en banda");
+        check(band.bandwidth < band.naturalBandwidth, "RCM debe reducir el ancho de banda: " + band.bandwidth
+            + " frente a " + band.naturalBandwidth);
+        stamps.accept(band::add);
+        CircuitSolverGUI.BandedLU banded = CircuitSolverGUI.BandedLU.factor(band);
+        CircuitSolverGUI.LUFactorization dense = CircuitSolverGUI.LUFactorization.factor(A);
+
+        double[][] At = new double[n][n];
+        for (int i=0; i<n; i++) {
+            for (int j=0; j<n; j++) At[i][j] = A[j][i];
+        }
+        for (int trial=0; trial<3; trial++) {
+            double[] b = new double[n];
+            for (int i=0; i<n; i++) b[i] = random.nextGaussian();
+            double[] x = banded.solve(b);
+            double tolerance = 1e-10 * maxAbs(x) * n;
+            check(residual(A, x, b) < tolerance, "residuo de A x = b: " + residual(A, x, b));
+            double[] expected = dense.solve(b);
+            for (int i=0; i<n; i++) assertClose(expected[i], x[i], 1e-9 * maxAbs(expected), "x[" + i + "]");
+
+            double[] y = banded.solveTranspose(b);
+            check(residual(At, y, b) < 1e-10 * maxAbs(y) * n, "residuo de A^T y = b: " + residual(At, y, b));
+            double[] expectedT = dense.solveTranspose(b);
+            for (int i=0; i<n; i++) assertClose(expectedT[i], y[i], 1e-9 * maxAbs(expectedT), "y[" + i + "]");
+        }
+    }
+
+    public static void testSmallCircuitShowsMatrix() throws Exception {
+        CircuitSolverGUI.CircuitSolver solver = solve(netlist(
+            "NODO 0 0 0\nNODO 1 0 0\nNODO 2 0 0\n"
+            + "ELEMENTO V 1 0 10\nELEMENTO R 1 2 1k\nELEMENTO R 2 0 1k\n"));
+        assertClose(5, solver.getNodeVoltages().get(2), 1e-12, "divisor de tensión");
+        String matrix = solver.getAugmentedMatrixString();
+        check(matrix.split("\n").length == 3, "se esperaban 3 filas en la matriz aumentada:\n" + matrix);
+    }
+
+    public static void testLargeCircuitDoesNotFormatMatrix() throws Exception {
+        CircuitSolverGUI.Netlist net = netlist(randomNetwork(300, 3, 7));
+        CircuitSolverGUI.CircuitSolver solver = solve(net);
+        check(kclError(net, voltagesByNode(net, solver)) < 1e-9, "error de KCL");
+        String matrix = solver.getAugmentedMatrixString();
+        check(matrix.length() < 200, "la matriz de 300 ecuaciones no debe formatearse: " + matrix.length() + " caracteres");
+    }
+
+    public static void testOffHeapMatchesDense() throws Exception {
+        CircuitSolverGUI.Netlist net = netlist(randomNetwork(250, 3, 11));
+        CircuitSolverGUI.CircuitSolver dense = solve(net);
+        CircuitSolverGUI.CircuitSolver offHeap = new CircuitSolverGUI.CircuitSolver(net.nodes, net.elements);
+        offHeap.setOffHeapStorage(true, null);
+        offHeap.solveCircuit();
+        for (CircuitSolverGUI.Node nd : net.nodes) {
+            assertClose(dense.getNodeVoltages().get(nd.id), offHeap.getNodeVoltages().get(nd.id), 1e-9,
+                "tensión del nodo " + nd.id);
+        }
+        // Los factores quedan en el archivo: las sensibilidades (solución transpuesta) coinciden con las densas
+        ArrayList<CircuitSolverGUI.Sensitivity> expected = dense.sensitivitiesOfNodeVoltage(100);
+        ArrayList<CircuitSolverGUI.Sensitivity> actual = offHeap.sensitivitiesOfNodeVoltage(100);
+        check(expected.size() == actual.size(), "cantidad de sensibilidades");
+        for (int k=0; k<expected.size(); k++) {
+            assertClose(expected.get(k).derivative, actual.get(k).derivative,
+                1e-9 * (1 + Math.abs(expected.get(k).derivative)), "sensibilidad " + k);
+        }
+        check(!offHeap.canReuseFactorization(), "fuera del heap no hay sistema armado para replaceElement()");
+
+        // Factorización directa de una matriz no simétrica con ceros en la diagonal (obliga a pivotear)
+        Random random = new Random(6);
+        int n = 80;
+        double[][] A = new double[n][n];
+        for (int i=0; i<n; i++) {
+            for (int j=0; j<n; j++) if (i != j || i % 3 != 0) A[i][j] = random.nextGaussian();
+        }
+        CircuitSolverGUI.OffHeapMatrix a = CircuitSolverGUI.OffHeapMatrix.mapScratchFile(n, n, null);
+        for (int i=0; i<n; i++) {
+            for (int j=0; j<n; j++) a.set(i, j, A[i][j]);
+        }
+        CircuitSolverGUI.OffHeapLU lu = CircuitSolverGUI.OffHeapLU.factor(a);
+        double[][] At = new double[n][n];
+        for (int i=0; i<n; i++) {
+            for (int j=0; j<n; j++) At[i][j] = A[j][i];
+        }
+        double[] b = new double[n];
+        for (int i=0; i<n; i++) b[i] = random.nextGaussian();
+        double[] x = lu.solve(b);
+        check(residual(A, x, b) < 1e-10 * maxAbs(x) * n, "residuo de A x = b: " + residual(A, x, b));
+        double[] y = lu.solveTranspose(b);
+        check(residual(At, y, b) < 1e-10 * maxAbs(y) * n, "residuo de A^T y = b: " + residual(At, y, b));
+        a.close();
+    }
+
+    /**
+     * Sistema más grande que el heap: se resuelve en otra JVM con -Xmx32m un circuito de 2100 nodos
+     * (la matriz aumentada ocupa 35 MB) y se verifica KCL en todos los nodos.
+     */
+    public static void testSystemLargerThanHeap() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-Xmx32m", "-cp", System.getProperty("java.class.path"),
+                LargeSystem.class.getName())
+            .redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        int exit = process.waitFor();
+        check(exit == 0, "la JVM con -Xmx32m terminó con código " + exit + ":\n" + output);
+    }
+
+    // Programa que corre testSystemLargerThanHeap en la JVM con el heap limitado.
+    static class LargeSystem {
+        public static void main(String[] args) throws Exception {
+            int n = 2100;
+            long matrixBytes = (long) n * (n + 1) * Double.BYTES;
+            check(matrixBytes > Runtime.getRuntime().maxMemory(), "la matriz debe superar el heap");
+            CircuitSolverGUI.Netlist net = netlist(randomNetwork(n, 3, 3));
+            CircuitSolverGUI.CircuitSolver solver = solve(net);
+            double error = kclError(net, voltagesByNode(net, solver));
+            System.out.println("Error de KCL: " + error);
+            check(error < 1e-8, "error de KCL " + error);
+        }
+    }
+
+    // Escalera RC/RL: fuente de 1 V en el nodo 1, resistores en serie y a tierra (más capacitores e
+    // inductores si se piden, para el transitorio y el análisis AC).
+    static String ladder(int sections, boolean reactive) {
+        StringBuilder sb = new StringBuilder("NODO 0 0 0\n");
+        for (int i=1; i<=sections + 1; i++) sb.append("NODO ").append(i).append(" 0 0\n");
+        sb.append("ELEMENTO V 1 0 1\n");
+        for (int i=1; i<=sections; i++) {
+            sb.append("ELEMENTO R ").append(i).append(' ').append(i + 1).append(' ').append(10 + i % 7).append('\n');
+            sb.append("ELEMENTO R ").append(i + 1).append(" 0 ").append(1000 + 13 * (i % 5)).append('\n');
+            if (reactive) {
+                sb.append("ELEMENTO CAP ").append(i + 1).append(" 0 ").append(1e-6 * (1 + i % 3)).append('\n');
+                if (i % 4 == 0) sb.append("ELEMENTO L ").append(i + 1).append(" 0 1m\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    // Copia de la netlist con el elemento de la posición index cambiado de valor.
+    static CircuitSolverGUI.Netlist withValue(CircuitSolverGUI.Netlist net, int index, double value) {
+        CircuitSolverGUI.Netlist copy = new CircuitSolverGUI.Netlist();
+        copy.nodes.addAll(net.nodes);
+        copy.elements.addAll(net.elements);
+        CircuitSolverGUI.CircuitElement ce = net.elements.get(index);
+        copy.elements.set(index, CircuitSolverGUI.copyElement(ce, ce.node1, ce.node2, value));
+        return copy;
+    }
+
+    // ---- Vigilancia: cambios de valores con actualizaciones de rango 1 ----
+
+    public static void testWatchRankOneUpdatesDense() throws Exception {
+        checkRankOneUpdates(netlist(randomNetwork(150, 3, 21)));
+    }
+
+    public static void testWatchRankOneUpdatesBanded() throws Exception {
+        checkRankOneUpdates(netlist(ladder(400, false)));
+    }
+
+    /**
+     * Cambia de a un resistor por vez, más veces que MAX_RANK_ONE_UPDATES, y compara cada resultado
+     * incremental (tensiones y sensibilidades, que usan la solución transpuesta) con una resolución nueva.
+     */
+    static void checkRankOneUpdates(CircuitSolverGUI.Netlist net) throws Exception {
+        CircuitSolverGUI.Circuit circuit = CircuitSolverGUI.Circuit.of(net.nodes, net.elements);
+        CircuitSolverGUI.IncrementalSolver incremental = new CircuitSolverGUI.IncrementalSolver();
+        incremental.solveFull(circuit.nodes(), circuit.elements());
+        Random random = new Random(5);
+        int probe = net.nodes.get(net.nodes.size() / 2).id;
+        int rankOne = 0, refactors = 0;
+        CircuitSolverGUI.Netlist current = net;
+        for (int change=0; change<CircuitSolverGUI.CircuitSolver.MAX_RANK_ONE_UPDATES + 4; change++) {
+            int index;
+            do {
+                index = random.nextInt(current.elements.size());
+            } while (!(current.elements.get(index) instanceof CircuitSolverGUI.Resistor));
+            current = withValue(current, index, current.elements.get(index).value * (0.5 + random.nextDouble()));
+            CircuitSolverGUI.Reload reload = CircuitSolverGUI.applyNetlistChange(current, circuit, incremental);
+            circuit = reload.circuit;
+            String report = reload.report;
+            check(!report.contains("Matriz aumentada"), "la vigilancia no debe mostrar la matriz");
+            if (report.contains("Sherman-Morrison")) rankOne++;
+            if (report.contains("nueva factorización")) refactors++;
+
+            CircuitSolverGUI.CircuitSolver fresh = CircuitSolverGUI.solveCircuit(circuit.nodes(), circuit.elements());
+            CircuitSolverGUI.CircuitSolver updated = incremental.getSolver();
+            for (CircuitSolverGUI.Node nd : circuit.nodes()) {
+                assertClose(fresh.getNodeVoltages().get(nd.id), updated.getNodeVoltages().get(nd.id), 1e-9,
+                    "tensión del nodo " + nd.id + " tras " + (change + 1) + " cambios");
+            }
+            ArrayList<CircuitSolverGUI.Sensitivity> expected = fresh.sensitivitiesOfNodeVoltage(probe);
+            ArrayList<CircuitSolverGUI.Sensitivity> actual = updated.sensitivitiesOfNodeVoltage(probe);
+            for (int k=0; k<expected.size(); k++) {
+                assertClose(expected.get(k).derivative, actual.get(k).derivative,
+                    1e-9 * (1 + Math.abs(expected.get(k).derivative)), "sensibilidad " + k);
+            }
+        }
+        // Se refactoriza sólo al agotar las actualizaciones; las siguientes vuelven a ser de rango 1
+        check(refactors == 1, "refactorizaciones: " + refactors);
+        check(rankOne == CircuitSolverGUI.CircuitSolver.MAX_RANK_ONE_UPDATES + 3, "actualizaciones de rango 1: " + rankOne);
+
+        // Cambiar una fuente sólo toca el lado derecho (replaceElement la ubica en su lista por tipo)
+        int sources = 0;
+        for (int index=0; index<current.elements.size(); index++) {
+            CircuitSolverGUI.CircuitElement ce = current.elements.get(index);
+            if (!(ce instanceof CircuitSolverGUI.VoltageSource || ce instanceof CircuitSolverGUI.CurrentSource)) continue;
+            sources++;
+            current = withValue(current, index, ce.value * 1.5);
+            circuit = CircuitSolverGUI.applyNetlistChange(current, circuit, incremental).circuit;
+            CircuitSolverGUI.CircuitSolver fresh = CircuitSolverGUI.solveCircuit(circuit.nodes(), circuit.elements());
+            for (CircuitSolverGUI.Node nd : circuit.nodes()) {
+                assertClose(fresh.getNodeVoltages().get(nd.id), incremental.getSolver().getNodeVoltages().get(nd.id),
+                    1e-9, "tensión del nodo " + nd.id + " tras cambiar la fuente " + index);
+            }
+        }
+        check(sources > 0, "la red debería tener fuentes");
+    }
+
+    // ---- Circuito persistente ----
+
+    public static void testPersistentVectorMatchesArrayList() throws Exception {
+        Random random = new Random(9);
+        for (int size : new int[]{0, 1, 31, 32, 33, 1024, 1025, 40000}) {
+            ArrayList<Integer> model = new ArrayList<>();
+            for (int i=0; i<size; i++) model.add(random.nextInt());
+            CircuitSolverGUI.PersistentVector<Integer> built = CircuitSolverGUI.PersistentVector.of(model);
+            CircuitSolverGUI.PersistentVector<Integer> grown = CircuitSolverGUI.PersistentVector.empty();
+            for (Integer v : model) grown = grown.plus(v);
+            check(built.equals(model) && grown.equals(model), "lista de " + size + " elementos");
+
+            // Las versiones anteriores no cambian al reemplazar, agregar o quitar
+            ArrayList<Integer> before = new ArrayList<>(model);
+            CircuitSolverGUI.PersistentVector<Integer> changed = built;
+            HashSet<Integer> removed = new HashSet<>();
+            for (int k=0; k<Math.min(size, 50); k++) {
+                int i = random.nextInt(size);
+                changed = changed.with(i, -k);
+                model.set(i, -k);
+                if (k % 5 == 0) removed.add(i);
+            }
+            changed = changed.plus(7);
+            model.add(7);
+            check(changed.equals(model), "reemplazos en lista de " + size);
+            check(built.equals(before) && grown.equals(before), "versión anterior de " + size);
+            ArrayList<Integer> kept = new ArrayList<>();
+            for (int i=0; i<model.size(); i++) if (!removed.contains(i)) kept.add(model.get(i));
+            check(changed.without(removed).equals(kept), "quitar de lista de " + size);
+        }
+    }
+
+    /**
+     * Recargar un archivo en el que cambió un valor debe dar un circuito que comparte con el anterior
+     * todas las hojas del árbol salvo la del elemento cambiado, y dejar el anterior intacto.
+     */
+    public static void testReloadSharesUnchangedStructure() throws Exception {
+        CircuitSolverGUI.Netlist net = netlist(ladder(3000, false));
+        CircuitSolverGUI.Circuit before = CircuitSolverGUI.Circuit.of(net.nodes, net.elements);
+        CircuitSolverGUI.IncrementalSolver incremental = new CircuitSolverGUI.IncrementalSolver();
+        incremental.solveFull(before.nodes(), before.elements());
+        int index = net.elements.size() / 2;
+        CircuitSolverGUI.CircuitElement old = before.elements().get(index);
+        CircuitSolverGUI.Reload reload = CircuitSolverGUI.applyNetlistChange(
+            withValue(net, index, old.value * 2), before, incremental);
+        CircuitSolverGUI.Circuit after = reload.circuit;
+
+        check(before.elements().get(index) == old, "el circuito anterior no debe cambiar");
+        assertClose(old.value * 2, after.elements().get(index).value, 0, "valor nuevo");
+        check(after.nodes() == before.nodes(), "los nodos deben ser la misma lista");
+        for (int i=0; i<net.elements.size(); i++) {
+            if (i != index) check(after.elements().get(i) == before.elements().get(i), "elemento " + i + " compartido");
+        }
+        Set<Object> leaves = leaves(before.elements());
+        int shared = 0;
+        Set<Object> afterLeaves = leaves(after.elements());
+        for (Object leaf : afterLeaves) if (leaves.contains(leaf)) shared++;
+        check(shared == afterLeaves.size() - 1, "hojas compartidas: " + shared + " de " + afterLeaves.size());
+
+        // En el historial, deshacer vuelve exactamente al circuito anterior
+        CircuitSolverGUI.EditHistory history = new CircuitSolverGUI.EditHistory();
+        history.apply(before, "cargar");
+        history.apply(after, "cambios");
+        history.undo();
+        check(history.current() == before, "deshacer debe volver al circuito anterior");
+
+        // Un cambio de topología (quitar el último elemento y agregar otro) da el mismo circuito que el archivo
+        CircuitSolverGUI.Netlist target = netlist(ladder(3000, false).replaceFirst("ELEMENTO [^\\n]*\\n\\z", "")
+            + "ELEMENTO R 1 0 47\n");
+        CircuitSolverGUI.Circuit structural = CircuitSolverGUI.applyNetlistChange(target, after, incremental).circuit;
+        check(structural.elements().size() == target.elements.size(), "cantidad de elementos tras el cambio de topología");
+        CircuitSolverGUI.CircuitSolver expected = CircuitSolverGUI.solveCircuit(target.nodes, target.elements);
+        for (CircuitSolverGUI.Node nd : target.nodes) {
+            assertClose(expected.getNodeVoltages().get(nd.id), incremental.getSolver().getNodeVoltages().get(nd.id),
+                1e-9, "tensión del nodo " + nd.id + " tras el cambio de topología");
+        }
+    }
+
+    // Hojas (arreglos de elementos) del árbol de una PersistentVector, comparadas por identidad.
+    static Set<Object> leaves(List<?> list) throws Exception {
+        Class<?> type = CircuitSolverGUI.PersistentVector.class;
+        java.lang.reflect.Field rootField = type.getDeclaredField("root");
+        java.lang.reflect.Field shiftField = type.getDeclaredField("shift");
+        rootField.setAccessible(true);
+        shiftField.setAccessible(true);
+        Set<Object> leaves = Collections.newSetFromMap(new IdentityHashMap<>());
+        collectLeaves((Object[]) rootField.get(list), shiftField.getInt(list), leaves);
+        return leaves;
+    }
+
+    static void collectLeaves(Object[] node, int level, Set<Object> leaves) {
+        if (level == 0) {
+            leaves.add(node);
+            return;
+        }
+        for (Object child : node) collectLeaves((Object[]) child, level - 5, leaves);
+    }
+
+    // ---- Newton-Raphson ----
+
+    // Fuente de corriente con resistores y dos diodos (uno en directa fuerte, otro cerca del codo).
+    static final String DIODE_CIRCUIT =
+        "NODO 0 0 0\nNODO 1 0 0\nNODO 2 0 0\nNODO 3 0 0\nNODO 4 0 0\n"
+        + "ELEMENTO I 0 1 0.01\n"
+        + "ELEMENTO R 1 0 1000\n"
+        + "ELEMENTO R 1 2 100\n"
+        + "ELEMENTO D 2 0 1e-14\n"
+        + "ELEMENTO D 2 3 1e-12\n"
+        + "ELEMENTO R 3 0 50\n"
+        + "ELEMENTO R 3 4 220\n"
+        + "ELEMENTO R 4 0 470\n";
+
+    public static void testNewtonDiodeCircuitKcl() throws Exception {
+        CircuitSolverGUI.Netlist net = netlist(DIODE_CIRCUIT);
+        CircuitSolverGUI.CircuitSolver solver = solve(net);
+        double error = kclError(net, voltagesByNode(net, solver));
+        check(error < 1e-9, "error de KCL con las corrientes exactas de los diodos (incluye GMIN): " + error);
+        check(solver.getConvergenceReport().contains("convergió"), solver.getConvergenceReport());
+
+        // Escalera grande con diodos: Newton trabaja sobre el patrón disperso, sin matrices de n x n
+        CircuitSolverGUI.Netlist large = netlist(ladder(5000, false).replace("ELEMENTO V 1 0 1\n", "ELEMENTO I 0 1 0.01\n")
+            + "ELEMENTO I 0 2500 0.01\nELEMENTO D 2500 0 1e-14\nELEMENTO D 2 4000 1e-12\n");
+        CircuitSolverGUI.CircuitSolver largeSolver = solve(large);
+        error = kclError(large, voltagesByNode(large, largeSolver));
+        check(error < 1e-9, "error de KCL en la escalera con diodos: " + error);
+        Matcher entries = Pattern.compile("(\\d+) entradas en L\\+U").matcher(largeSolver.getConvergenceReport());
+        check(entries.find() && Long.parseLong(entries.group(1)) < 10L * large.nodes.size(),
+            "L+U debería crecer linealmente: " + largeSolver.getConvergenceReport().split("\n")[0]);
+        check(largeSolver.getAugmentedMatrixString().contains("LU dispersa"), "la matriz grande no se muestra");
+    }
+
+    /**
+     * Las sensibilidades usan la factorización guardada tras Newton-Raphson; deben coincidir con
+     * diferencias finitas centradas, lo que exige que el Jacobiano sea el de la solución convergida.
+     */
+    public static void testNewtonSensitivitiesMatchFiniteDifferences() throws Exception {
+        checkSensitivitiesByFiniteDifferences(netlist(DIODE_CIRCUIT), 3, 1e-7);
+        // Converge con un último paso de 4e-7 V: con la factorización de ese iterado el error era 1.6e-5
+        checkSensitivitiesByFiniteDifferences(netlist("NODO 0 0 0\nNODO 1 0 0\nNODO 2 0 0\n"
+            + "ELEMENTO I 0 1 0.5\nELEMENTO R 1 0 200\nELEMENTO R 1 2 10\nELEMENTO D 2 0 1e-14\n"), 2, 1e-7);
+    }
+
+    /**
+     * Compara d V(probe)/dp del método adjunto con diferencias finitas centradas para cada resistor y
+     * fuente, con paso relativo 1e-4 y tolerancia relativa.
+     */
+    static void checkSensitivitiesByFiniteDifferences(CircuitSolverGUI.Netlist net, int probe, double tolerance)
+            throws Exception {
+        CircuitSolverGUI.CircuitSolver solver = solve(net);
+        checkAgainstFiniteDifferences(net, solver.sensitivitiesOfNodeVoltage(probe),
+            (n, s) -> s.getNodeVoltages().get(probe), "V(" + probe + ")", tolerance);
+    }
+
+    // Igual, para la corriente de node1 a node2 del resistor de la posición index.
+    static void checkCurrentSensitivitiesByFiniteDifferences(CircuitSolverGUI.Netlist net, int index, double tolerance)
+            throws Exception {
+        CircuitSolverGUI.CircuitSolver solver = solve(net);
+        checkAgainstFiniteDifferences(net, solver.sensitivitiesOfElementCurrent(net.elements.get(index)),
+            (n, s) -> {
+                CircuitSolverGUI.CircuitElement r = n.elements.get(index);
+                return (s.getNodeVoltages().get(r.node1.id) - s.getNodeVoltages().get(r.node2.id)) / r.value;
+            }, "I(R" + index + ")", tolerance);
+    }
+
+    interface Output {
+        double of(CircuitSolverGUI.Netlist net, CircuitSolverGUI.CircuitSolver solver);
+    }
+
+    static void checkAgainstFiniteDifferences(CircuitSolverGUI.Netlist net, List<CircuitSolverGUI.Sensitivity> sensitivities,
+                                              Output output, String label, double tolerance) throws Exception {
+        check(!sensitivities.isEmpty(), "sin sensibilidades");
+        for (CircuitSolverGUI.Sensitivity s : sensitivities) {
+            int index = net.elements.indexOf(s.element);
+            double p = s.element.value;
+            double h = 1e-4 * Math.abs(p);
+            CircuitSolverGUI.Netlist up = withValue(net, index, p + h);
+            CircuitSolverGUI.Netlist down = withValue(net, index, p - h);
+            double fd = (output.of(up, solve(up)) - output.of(down, solve(down))) / (2 * h);
+            assertClose(fd, s.derivative, tolerance * Math.abs(fd) + 1e-12,
+                "d" + label + "/d" + CircuitSolverGUI.typeCode(s.element) + " " + s.element.node1.id + "-" + s.element.node2.id);
+        }
+    }
+
+    public static void testNewtonCurrentSensitivitiesMatchFiniteDifferences() throws Exception {
+        // Corriente del resistor entre los nodos 1 y 2, en serie con los diodos
+        checkCurrentSensitivitiesByFiniteDifferences(netlist(DIODE_CIRCUIT), 2, 1e-7);
+    }
+
+    // ---- Sensibilidades de circuitos lineales ----
+
+    public static void testLinearSensitivitiesMatchFiniteDifferences() throws Exception {
+        // Red densa (LU con pivoteo parcial) y escalera con fuente de voltaje (factorización en banda)
+        checkSensitivitiesByFiniteDifferences(netlist(randomNetwork(30, 2, 7)), 10, 1e-6);
+        checkSensitivitiesByFiniteDifferences(netlist(ladder(300, false)), 150, 1e-6);
+        CircuitSolverGUI.Netlist net = netlist(randomNetwork(30, 2, 8));
+        for (int index : new int[] {1, 5, 17}) {
+            if (net.elements.get(index) instanceof CircuitSolverGUI.Resistor)
+                checkCurrentSensitivitiesByFiniteDifferences(net, index, 1e-6);
+        }
+    }
+
+    // refactor() sobre el patrón analizado reproduce una factorización densa (también la transpuesta),
+    // y rechaza un pivote que quedó chico frente a su columna aunque no sea casi cero.
+    public static void testRefactorMatchesFactorAndRejectsSmallPivots() throws Exception {
+        Random random = new Random(3);
+        int n = 40;
+        double[][] A = new double[n][n];
+        for (int i=0; i<n; i++) {
+            A[i][i] = 10 + random.nextDouble();
+            for (int k=0; k<3; k++) {
+                int j = random.nextInt(n);
+                A[i][j] += random.nextDouble() - 0.5;
+            }
+        }
+        CircuitSolverGUI.SparseFactorization f = CircuitSolverGUI.SparseFactorization.analyze(n, stamp -> {
+            for (int i=0; i<n; i++) {
+                for (int j=0; j<n; j++) if (A[i][j] != 0) stamp.add(i, j, A[i][j]);
+            }
+        });
+        double[][] B = new double[n][n];
+        double[] values = new double[f.entries()];
+        for (int i=0; i<n; i++) {
+            for (int j=0; j<n; j++) {
+                if (A[i][j] == 0) continue;
+                B[i][j] = A[i][j] * (0.8 + 0.4 * random.nextDouble());
+                values[f.entry(i, j)] = B[i][j];
+            }
+        }
+        f.load(values);
+        check(f.refactor(), "la refactorización debería aceptar una matriz con pivotes estables");
+        double[] b = new double[n];
+        for (int i=0; i<n; i++) b[i] = random.nextDouble();
+        double res = residual(B, f.solve(b), b);
+        check(res < 1e-12, "residuo tras refactorizar: " + res);
+        double[][] Bt = new double[n][n];
+        for (int i=0; i<n; i++) {
+            for (int j=0; j<n; j++) Bt[i][j] = B[j][i];
+        }
+        res = residual(Bt, f.solveTranspose(b), b);
+        check(res < 1e-12, "residuo de la transpuesta tras refactorizar: " + res);
+        double[] y = new double[n];
+        f.multiply(values, b, y);
+        double[] expected = new double[n];
+        for (int i=0; i<n; i++) {
+            for (int j=0; j<n; j++) expected[i] += B[i][j] * b[j];
+            check(Math.abs(y[i] - expected[i]) < 1e-12, "producto por las entradas, fila " + i);
+        }
+
+        // Con cualquier orden de columnas el pivote de la primera queda en 1e-5 o 3e-5 frente a 1
+        double[][] C = {{2, 1}, {1, 3}};
+        CircuitSolverGUI.SparseFactorization small = CircuitSolverGUI.SparseFactorization.analyze(2, stamp -> {
+            for (int i=0; i<2; i++) {
+                for (int j=0; j<2; j++) stamp.add(i, j, C[i][j]);
+            }
+        });
+        double[][] D = {{1e-5, 1}, {1, 3e-5}};
+        double[] smallValues = new double[small.entries()];
+        for (int i=0; i<2; i++) {
+            for (int j=0; j<2; j++) smallValues[small.entry(i, j)] = D[i][j];
+        }
+        small.load(smallValues);
+        check(!small.refactor(), "pivote chico frente a 1 en su columna");
+        small = small.reanalyze(smallValues);
+        check(small.refactor(), "con el orden de filas elegido de nuevo el pivoteo es estable");
+        double[] d = {1, 2};
+        res = residual(D, small.solve(d), d);
+        check(res < 1e-12, "residuo tras volver a analizar: " + res);
+    }
+
+    // ---- Transitorio ----
+
+    // Corre el transitorio y devuelve el CSV como columnas por nombre (t, V(N1), I(L N2-N0), ...).
+    static Map<String, double[]> runTransient(CircuitSolverGUI.Netlist net, double step, long steps, boolean trapezoidal)
+            throws Exception {
+        StringWriter csv = new StringWriter();
+        CircuitSolverGUI.runTransient(net.nodes, net.elements, step, steps, trapezoidal, 1, csv);
+        String[] lines = csv.toString().split("\n");
+        String[] names = lines[0].split(",");
+        LinkedHashMap<String, double[]> columns = new LinkedHashMap<>();
+        for (String name : names) columns.put(name, new double[lines.length]);
+        // Fila 0: condiciones iniciales nulas
+        for (int r=1; r<lines.length; r++) {
+            String[] fields = lines[r].split(",");
+            for (int c=0; c<names.length; c++) columns.get(names[c])[r] = Double.parseDouble(fields[c]);
+        }
+        return columns;
+    }
+
+    /**
+     * Escalera RLC de 400 secciones (se factoriza en banda): en cada paso de Euler hacia atrás se verifica
+     * KCL en cada nodo con la corriente C (v - v_ant) / h de los capacitores y la corriente de los
+     * inductores del CSV, y la ecuación v = L (i - i_ant) / h de cada inductor.
+     */
+    public static void testBandedTransientSatisfiesBackwardEuler() throws Exception {
+        CircuitSolverGUI.Netlist net = netlist(ladder(400, true));
+        double h = 1e-6;
+        Map<String, double[]> cols = runTransient(net, h, 40, false);
+        for (int r=1; r<=40; r++) {
+            HashMap<Integer, Double> sum = new HashMap<>();
+            double worstInductor = 0;
+            for (CircuitSolverGUI.CircuitElement ce : net.elements) {
+                double v1 = voltage(cols, ce.node1.id, r), v2 = voltage(cols, ce.node2.id, r);
+                double current;
+                if (ce instanceof CircuitSolverGUI.Resistor) {
+                    current = (v1 - v2) / ce.value;
+                } else if (ce instanceof CircuitSolverGUI.Capacitor) {
+                    double before = voltage(cols, ce.node1.id, r - 1) - voltage(cols, ce.node2.id, r - 1);
+                    current = ce.value * ((v1 - v2) - before) / h;
+                } else if (ce instanceof CircuitSolverGUI.Inductor) {
+                    double[] i = cols.get("I(L N" + ce.node1.id + "-N" + ce.node2.id + ")");
+                    current = i[r];
+                    worstInductor = Math.max(worstInductor, Math.abs((v1 - v2) - ce.value * (i[r] - i[r - 1]) / h));
+                } else {
+                    continue;
+                }
+                sum.merge(ce.node1.id, current, Double::sum);
+                sum.merge(ce.node2.id, -current, Double::sum);
+            }
+            for (Map.Entry<Integer, Double> e : sum.entrySet()) {
+                // El nodo 1 lo fija la fuente de voltaje
+                if (e.getKey() > 1) check(Math.abs(e.getValue()) < 1e-10, "KCL en el nodo " + e.getKey() + ", paso " + r + ": " + e.getValue());
+            }
+            check(worstInductor < 1e-9, "ecuación del inductor en el paso " + r + ": " + worstInductor);
+        }
+    }
+
+    static double voltage(Map<String, double[]> cols, int node, int row) {
+        return node == 0 ? 0 : cols.get("V(N" + node + ")")[row];
+    }
+
+    // Carga de un RC y de un RL con el método trapezoidal frente a las fórmulas cerradas.
+    public static void testTransientMatchesClosedForms() throws Exception {
+        double tau = 1e3 * 1e-6;
+        Map<String, double[]> rc = runTransient(netlist("NODO 0 0 0\nNODO 1 0 0\nNODO 2 0 0\n"
+            + "ELEMENTO V 1 0 1\nELEMENTO R 1 2 1k\nELEMENTO CAP 2 0 1u\n"), 1e-6, 3000, true);
+        double[] t = rc.get("t");
+        double[] v = rc.get("V(N2)");
+        for (int r=1; r<t.length; r++) {
+            assertClose(1 - Math.exp(-t[r] / tau), v[r], 1e-6, "V(C) en t = " + t[r]);
+        }
+        Map<String, double[]> rl = runTransient(netlist("NODO 0 0 0\nNODO 1 0 0\nNODO 2 0 0\n"
+            + "ELEMENTO V 1 0 2\nELEMENTO R 1 2 10\nELEMENTO L 2 0 10m\n"), 1e-6, 3000, true);
+        t = rl.get("t");
+        double[] i = rl.get("I(L N2-N0)");
+        for (int r=1; r<t.length; r++) {
+            assertClose(0.2 * (1 - Math.exp(-t[r] * 10 / 10e-3)), i[r], 1e-6, "I(L) en t = " + t[r]);
+        }
+    }
+
+    public static void testTransientRejectsInvalidArguments() throws Exception {
+        CircuitSolverGUI.Netlist net = netlist(ladder(3, true));
+        double[][] cases = {{1e-6, 10, 0}, {0, 10, 1}, {-1e-6, 10, 1}, {1e-6, 0, 1}};
+        for (double[] c : cases) {
+            try {
+                CircuitSolverGUI.runTransient(net.nodes, net.elements, c[0], (long) c[1], false, (int) c[2], new StringWriter());
+                throw new AssertionError("se aceptó paso " + c[0] + ", pasos " + c[1] + ", cada " + c[2]);
+            } catch (AssertionError ex) {
+                throw ex;
+            } catch (Exception ex) {
+                check(ex.getMessage() != null && !ex.getMessage().contains("/ by zero"), "mensaje: " + ex.getMessage());
+            }
+        }
+    }
+
+    // ---- Análisis AC ----
+
+    // Barrido AC en memoria: columnas del CSV por nombre ("f", "|V(N1)|", "fase V(N1)", ...).
+    static Map<String, double[]> acSweep(CircuitSolverGUI.Netlist net, double fStart, double fStop, int points)
+            throws Exception {
+        StringWriter csv = new StringWriter();
+        CircuitSolverGUI.runAcSweep(net.nodes, net.elements, fStart, fStop, points, 2, csv);
+        String[] lines = csv.toString().split("\n");
+        String[] names = lines[0].split(",");
+        LinkedHashMap<String, double[]> columns = new LinkedHashMap<>();
+        for (String name : names) columns.put(name, new double[lines.length - 1]);
+        for (int r=1; r<lines.length; r++) {
+            String[] fields = lines[r].split(",");
+            for (int c=0; c<names.length; c++) columns.get(names[c])[r - 1] = Double.parseDouble(fields[c]);
+        }
+        return columns;
+    }
+
+    // Compara la tensión de un nodo en cada fila del barrido con el fasor esperado {re, im} de cada frecuencia.
+    interface Phasor {
+        double[] at(double omega);
+    }
+
+    static void checkPhasor(Map<String, double[]> cols, int node, Phasor expected, String what) {
+        double[] f = cols.get("f");
+        for (int r=0; r<f.length; r++) {
+            double[] v = expected.at(2 * Math.PI * f[r]);
+            double magnitude = Math.hypot(v[0], v[1]);
+            assertClose(magnitude, cols.get("|V(N" + node + ")|")[r], 1e-9 * magnitude, what + ": módulo a " + f[r] + " Hz");
+            assertClose(Math.toDegrees(Math.atan2(v[1], v[0])), cols.get("fase V(N" + node + ")")[r], 1e-7,
+                what + ": fase a " + f[r] + " Hz");
+        }
+    }
+
+    // Cociente de complejos a / b.
+    static double[] divide(double[] a, double[] b) {
+        double den = b[0] * b[0] + b[1] * b[1];
+        return new double[]{(a[0] * b[0] + a[1] * b[1]) / den, (a[1] * b[0] - a[0] * b[1]) / den};
+    }
+
+    /**
+     * Filtros con respuesta conocida: RC pasabajos con fuente de voltaje, RC en paralelo con fuente de
+     * corriente y RLC serie (la tensión del capacitor pasa por la resonancia). Las fuentes excitan con
+     * su valor DC como amplitud y fase 0.
+     */
+    public static void testAcMatchesClosedForms() throws Exception {
+        double r = 1e3, c = 100e-9;
+        CircuitSolverGUI.Netlist rc = netlist("NODO 0 0 0\nNODO 1 0 0\nNODO 2 0 0\n"
+            + "ELEMENTO V 1 0 2\nELEMENTO R 1 2 1k\nELEMENTO CAP 2 0 100n\n");
+        checkPhasor(acSweep(rc, 10, 1e6, 61), 2, w -> divide(new double[]{2, 0}, new double[]{1, w * r * c}), "RC");
+
+        // La fuente de corriente entra al nodo 1: en DC V1 = I R, y en AC se divide por 1 + jωRC
+        CircuitSolverGUI.Netlist parallel = netlist("NODO 0 0 0\nNODO 1 0 0\n"
+            + "ELEMENTO I 0 1 1m\nELEMENTO R 1 0 1k\nELEMENTO CAP 1 0 1u\n");
+        double dc = solve(parallel).getNodeVoltages().get(1);
+        assertClose(1, dc, 1e-12, "tensión DC del RC paralelo");
+        checkPhasor(acSweep(parallel, 1, 1e5, 41), 1, w -> divide(new double[]{dc, 0}, new double[]{1, w * 1e3 * 1e-6}),
+            "RC paralelo");
+
+        double rs = 50, l = 10e-3, cs = 1e-6;
+        CircuitSolverGUI.Netlist rlc = netlist("NODO 0 0 0\nNODO 1 0 0\nNODO 2 0 0\nNODO 3 0 0\n"
+            + "ELEMENTO V 1 0 1\nELEMENTO R 1 2 50\nELEMENTO L 2 3 10m\nELEMENTO CAP 3 0 1u\n");
+        // V3 = (1/jωC) / (R + jωL + 1/jωC)
+        Phasor capacitor = w -> divide(new double[]{0, -1 / (w * cs)}, new double[]{rs, w * l - 1 / (w * cs)});
+        Map<String, double[]> cols = acSweep(rlc, 10, 1e5, 81);
+        checkPhasor(cols, 3, capacitor, "RLC serie");
+        // V2 = (jωL + 1/jωC) / (R + jωL + 1/jωC)
+        checkPhasor(cols, 2, w -> divide(new double[]{0, w * l - 1 / (w * cs)}, new double[]{rs, w * l - 1 / (w * cs)}),
+            "RLC serie, nodo 2");
+    }
+
+    /**
+     * Red al azar con capacitores, inductores y una fuente de voltaje: la solución de la LU dispersa
+     * reordenada debe coincidir con una eliminación gaussiana densa compleja de las mismas estampas.
+     */
+    public static void testAcMatchesDenseComplexSolve() throws Exception {
+        Random random = new Random(17);
+        StringBuilder text = new StringBuilder(randomNetwork(80, 2, 11));
+        text.append("ELEMENTO V 1 0 1\n");
+        for (int i=2; i<=80; i++) {
+            text.append("ELEMENTO CAP ").append(i).append(" 0 ").append(1e-7 * (1 + random.nextDouble())).append('\n');
+            if (i % 9 == 0) text.append("ELEMENTO L ").append(i).append(' ').append(1 + random.nextInt(80)).append(" 1m\n");
+        }
+        CircuitSolverGUI.Netlist net = netlist(text.toString());
+        CircuitSolverGUI.AcAnalysis ac = new CircuitSolverGUI.AcAnalysis(net.nodes, net.elements, 2 * Math.PI * 1e3);
+        int n = ac.n;
+        double[][] g = new double[n][n], b = new double[n][n];
+        double[] rhs = new double[n];
+        ac.solver.stampSmallSignal(n,
+            (row, col, value) -> {
+                if (col == n) rhs[row] += value;
+                else g[row][col] += value;
+            },
+            (row, col, value) -> b[row][col] += value);
+        CircuitSolverGUI.AcAnalysis.Workspace w = ac.newWorkspace();
+        for (double f : new double[]{1, 100, 1e3, 3e4, 1e6}) {
+            double omega = 2 * Math.PI * f;
+            double[][] re = new double[n][], im = new double[n][];
+            for (int i=0; i<n; i++) {
+                re[i] = g[i].clone();
+                im[i] = new double[n];
+                for (int j=0; j<n; j++) im[i][j] = omega * b[i][j];
+            }
+            double[][] x = denseComplexSolve(re, im, rhs.clone(), new double[n]);
+            CircuitSolverGUI.AcAnalysis.Workspace solved = ac.solve(omega, w);
+            double scale = 0;
+            for (int i=0; i<n; i++) scale = Math.max(scale, Math.hypot(x[0][i], x[1][i]));
+            for (int i=0; i<n; i++) {
+                assertClose(x[0][i], solved.re(i), 1e-9 * scale, "parte real de la incógnita " + i + " a " + f + " Hz");
+                assertClose(x[1][i], solved.im(i), 1e-9 * scale, "parte imaginaria de la incógnita " + i + " a " + f + " Hz");
+            }
+        }
+    }
+
+    // Eliminación gaussiana compleja con pivoteo parcial; devuelve {parte real, parte imaginaria}.
+    static double[][] denseComplexSolve(double[][] re, double[][] im, double[] br, double[] bi) {
+        int n = br.length;
+        for (int k=0; k<n; k++) {
+            int pivot = k;
+            for (int i=k+1; i<n; i++) {
+                if (Math.hypot(re[i][k], im[i][k]) > Math.hypot(re[pivot][k], im[pivot][k])) pivot = i;
+            }
+            double[] t = re[k]; re[k] = re[pivot]; re[pivot] = t;
+            t = im[k]; im[k] = im[pivot]; im[pivot] = t;
+            double s = br[k]; br[k] = br[pivot]; br[pivot] = s;
+            s = bi[k]; bi[k] = bi[pivot]; bi[pivot] = s;
+            for (int i=k+1; i<n; i++) {
+                double[] factor = divide(new double[]{re[i][k], im[i][k]}, new double[]{re[k][k], im[k][k]});
+                if (factor[0] == 0 && factor[1] == 0) continue;
+                for (int j=k; j<n; j++) {
+                    re[i][j] -= factor[0] * re[k][j] - factor[1] * im[k][j];
+                    im[i][j] -= factor[0] * im[k][j] + factor[1] * re[k][j];
+                }
+                br[i] -= factor[0] * br[k] - factor[1] * bi[k];
+                bi[i] -= factor[0] * bi[k] + factor[1] * br[k];
+            }
+        }
+        double[] xr = new double[n], xi = new double[n];
+        for (int k=n-1; k>=0; k--) {
+            double sr = br[k], si = bi[k];
+            for (int j=k+1; j<n; j++) {
+                sr -= re[k][j] * xr[j] - im[k][j] * xi[j];
+                si -= re[k][j] * xi[j] + im[k][j] * xr[j];
+            }
+            double[] x = divide(new double[]{sr, si}, new double[]{re[k][k], im[k][k]});
+            xr[k] = x[0];
+            xi[k] = x[1];
+        }
+        return new double[][]{xr, xi};
+    }
+
+    public static void testAcSweepThreadsAndExcitationNote() throws Exception {
+        CircuitSolverGUI.Netlist net = netlist(ladder(300, true) + "ELEMENTO I 0 50 1m\n");
+        StringWriter one = new StringWriter(), three = new StringWriter();
+        String note = CircuitSolverGUI.runAcSweep(net.nodes, net.elements, 1, 1e6, 200, 1, one);
+        CircuitSolverGUI.runAcSweep(net.nodes, net.elements, 1, 1e6, 200, 3, three);
+        check(one.toString().equals(three.toString()), "el resultado no debe depender de la cantidad de hilos");
+        check(note.contains("fase 0") && note.contains("V N1-N0") && note.contains("I N0-N50"),
+            "la nota debe listar las fuentes que excitan el circuito: " + note);
+        try {
+            CircuitSolverGUI.runAcSweep(net.nodes, net.elements, 1, 1e6, 200, 0, new StringWriter());
+            check(false, "cero hilos debe ser un error");
+        } catch (Exception ex) {
+            check(ex.getMessage() != null && ex.getMessage().contains("hilo"), "mensaje: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Argumentos y netlists inválidos en modo sin interfaz: deben terminar con un mensaje y el uso, sin
+     * la traza de una excepción. 100G es un valor válido (giga).
+     */
+    public static void testHeadlessRejectsInvalidArguments() throws Exception {
+        File dir = Files.createTempDirectory("ac").toFile();
+        File good = new File(dir, "rc.txt");
+        Files.writeString(good.toPath(), "NODO 0 0 0\nNODO 1 0 0\nNODO 2 0 0\n"
+            + "ELEMENTO V 1 0 1\nELEMENTO R 1 2 1k\nELEMENTO CAP 2 0 100n\n");
+        File bad = new File(dir, "malo.txt");
+        Files.writeString(bad.toPath(), "NODO 0 0 0\nNODO 1 0 0\nELEMENTO R 1 0 10Q\n");
+        String csv = new File(dir, "ac.csv").getPath();
+
+        String out = headless(2, good.getPath(), "--ac", "1", "10", "5", csv, "--hilos", "0");
+        check(out.contains("--hilos debe ser al menos 1"), out);
+        out = headless(2, good.getPath(), "--ac", "1", "10x", "5", csv);
+        check(out.contains("Valor inválido") && out.contains("10x"), out);
+        out = headless(1, bad.getPath());
+        check(out.contains("Línea 3") && out.contains("10Q"), out);
+        out = headless(0, good.getPath(), "--ac", "1", "100G", "5", csv, "--hilos", "1");
+        check(out.contains("Excitación AC") && out.contains("V N1-N0"), out);
+        check(Files.readAllLines(new File(csv).toPath()).size() == 6, "el CSV debe tener 5 frecuencias");
+    }
+
+    // Corre CircuitSolverGUI --headless en otra JVM, verifica el código de salida y devuelve lo que escribió.
+    static String headless(int expectedExit, String... args) throws Exception {
+        return runMain(expectedExit, "--headless", args);
+    }
+
+    // Corre CircuitSolverGUI en otra JVM con el modo indicado (--headless, --serve, ...).
+    static String runMain(int expectedExit, String mode, String... args) throws Exception {
+        ArrayList<String> command = new ArrayList<>(Arrays.asList(
+            System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+            "-Djava.awt.headless=true", "-Dsun.stdout.encoding=UTF-8", "-Dsun.stderr.encoding=UTF-8",
+            "-cp", System.getProperty("java.class.path"), "CircuitSolverGUI", mode));
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), "UTF-8");
+        int exit = process.waitFor();
+        check(exit == expectedExit, "código de salida " + exit + " con " + Arrays.toString(args) + ":\n" + output);
+        check(!output.contains("Exception"), "no debe mostrarse una excepción:\n" + output);
+        return output;
+    }
+
+    // ---- Resolución por lotes ----
+
+    /**
+     * Resuelve en lote "count" instancias con los resistores y fuentes multiplicados por factores al azar
+     * entre 1/spread y spread, y compara cada una con una resolución escalar del circuito modificado
+     * (tolerancia relativa a la mayor tensión de la instancia). Devuelve la cantidad de instancias que se resolvieron solas por un pivote chico.
+     */
+    static int checkBatchAgainstScalar(CircuitSolverGUI.Netlist net, int count, int blockSize, double spread, long seed,
+                                       double tolerance) throws Exception {
+        Random random = new Random(seed);
+        double[][] values = new double[net.elements.size()][];
+        for (int e=0; e<net.elements.size(); e++) {
+            CircuitSolverGUI.CircuitElement ce = net.elements.get(e);
+            if (!(ce instanceof CircuitSolverGUI.Resistor) && !(ce instanceof CircuitSolverGUI.VoltageSource)
+                    && !(ce instanceof CircuitSolverGUI.CurrentSource)) continue;
+            values[e] = new double[count];
+            for (int k=0; k<count; k++) values[e][k] = ce.value * Math.pow(spread, 2 * random.nextDouble() - 1);
+        }
+        CircuitSolverGUI.BatchSolver batch = new CircuitSolverGUI.BatchSolver(net.nodes, net.elements, blockSize);
+        int fallbacks = 0;
+        for (int first=0; first<count; first+=blockSize) {
+            int block = Math.min(blockSize, count - first);
+            batch.solve(values, first, block);
+            fallbacks += batch.getFallbackCount();
+            for (int k=0; k<block; k++) {
+                CircuitSolverGUI.Netlist instance = new CircuitSolverGUI.Netlist();
+                instance.nodes.addAll(net.nodes);
+                for (int e=0; e<values.length; e++) {
+                    CircuitSolverGUI.CircuitElement ce = net.elements.get(e);
+                    instance.elements.add(values[e] == null ? ce
+                        : CircuitSolverGUI.copyElement(ce, ce.node1, ce.node2, values[e][first + k]));
+                }
+                CircuitSolverGUI.CircuitSolver scalar = solve(instance);
+                double scale = 1;
+                for (double v : scalar.getNodeVoltages().values()) scale = Math.max(scale, Math.abs(v));
+                for (CircuitSolverGUI.Node nd : net.nodes) {
+                    // Los nodos unidos por cables a otro se comparan en su representante
+                    if (!scalar.getNodeVoltages().containsKey(nd.id)) continue;
+                    double expected = scalar.getNodeVoltages().get(nd.id);
+                    double actual = batch.unknown(batch.nodeColumn(nd.id), k);
+                    assertClose(expected, actual, tolerance * scale, "instancia " + (first + k) + ", nodo " + nd.id);
+                }
+            }
+        }
+        return fallbacks;
+    }
+
+    public static void testBatchMatchesScalarSolves() throws Exception {
+        // Red al azar con fuentes de corriente, y escalera con fuente de voltaje; 300 instancias en
+        // bloques de 128 (el último incompleto)
+        checkBatchAgainstScalar(netlist(randomNetwork(40, 2, 11)), 300, 128, 2, 1, 1e-9);
+        checkBatchAgainstScalar(netlist(ladder(60, false) + "ELEMENTO I 0 30 0.01\n"), 300, 128, 2, 2, 1e-9);
+        // Fuentes de corriente con los dos extremos en tierra, directamente o por un cable: no aportan
+        // nada, como en la resolución escalar
+        checkBatchAgainstScalar(netlist(ladder(60, false) + "NODO 62 0 0\nELEMENTO C 62 0 0\n"
+            + "ELEMENTO I 0 0 0.2\nELEMENTO I 62 0 0.3\nELEMENTO I 0 30 0.01\n"), 300, 128, 2, 3, 1e-9);
+    }
+
+    /**
+     * Fuente de voltaje flotante entre los nodos 1 y 2 (su fila no tiene diagonal) y resistores de 1 ohm
+     * que varían en 8 órdenes de magnitud: las conductancias de los nodos compiten con la incidencia 1 de
+     * la fuente, así que en algunas instancias el orden de pivotes nominal no sirve y se resuelven solas,
+     * con el mismo resultado que la resolución escalar.
+     */
+    public static void testBatchFallbackForUnstablePivots() throws Exception {
+        CircuitSolverGUI.Netlist net = netlist("NODO 0 0 0\nNODO 1 0 0\nNODO 2 0 0\nNODO 3 0 0\n"
+            + "ELEMENTO V 1 2 5\nELEMENTO R 1 0 1\nELEMENTO R 2 3 1\nELEMENTO R 3 0 1\n"
+            + "ELEMENTO R 1 3 1\nELEMENTO I 0 3 1m\n");
+        int fallbacks = checkBatchAgainstScalar(net, 400, 64, 1e4, 3, 1e-9);
+        check(fallbacks > 0, "ninguna instancia necesitó pivoteo propio");
+    }
+
+    // Escalera de 20000 secciones: con los arreglos n x n de antes (n = 20002) no entraba en memoria.
+    public static void testBatchLargeSparseCircuit() throws Exception {
+        checkBatchAgainstScalar(netlist(ladder(20000, false)), 4, 4, 1.5, 4, 1e-9);
+    }
+
+    public static void testBatchValuesRejectInvalidColumns() throws Exception {
+        // La línea ELEMENTO 3 referencia un nodo que no existe y no se carga
+        CircuitSolverGUI.Netlist net = netlist("NODO 0 0 0\nNODO 1 0 0\nNODO 2 0 0\n"
+            + "ELEMENTO V 1 0 5\nELEMENTO R 1 2 1k\nELEMENTO R 2 9 1k\nELEMENTO R 2 0 2k\nELEMENTO CAP 2 0 1u\n");
+        check(net.elements.size() == 4, "elementos cargados: " + net.elements.size());
+        // La columna 4 es el resistor R 2 0 (cuarta línea ELEMENTO), aunque sea el tercer elemento cargado
+        double[][] values = CircuitSolverGUI.readBatchValues(batchFile("4,1\n3k,6\n"), net);
+        check(values[2] != null && values[2][0] == 3000 && values[0][0] == 6 && values[1] == null,
+            "columnas leídas por número de línea ELEMENTO");
+        String[][] invalid = {
+            {"3\n1k\n", "no se cargó"},
+            {"5\n1u\n", "CAP"},
+            {"9\n1\n", "No existe"},
+            {"2,2\n1k,2k\n", "dos veces"},
+            {"2\n-1k\n", "inválido"},
+            {"2\n0\n", "positiva"},
+            {"2\n1k,2k\n", "no tiene"},
+        };
+        for (String[] c : invalid) {
+            try {
+                CircuitSolverGUI.readBatchValues(batchFile(c[0]), net);
+                throw new AssertionError("se aceptó " + c[0].replace('\n', '|'));
+            } catch (IOException ex) {
+                check(ex.getMessage().contains(c[1]), "mensaje para " + c[0].replace('\n', '|') + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    static File batchFile(String text) throws IOException {
+        File f = File.createTempFile("lote", ".csv");
+        f.deleteOnExit();
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8")) {
+            w.write(text);
+        }
+        return f;
+    }
+
+    // ---- Servicio: solicitudes concurrentes distintas ----
+
+    /**
+     * Envía a la vez circuitos distintos (la mitad sólo cambia las fuentes, así que comparte la matriz y
+     * la factorización; la otra mitad cambia también los resistores) y compara cada respuesta con una
+     * resolución directa del mismo circuito.
+     */
+    public static void testServiceConcurrentDistinctRequests() throws Exception {
+        CircuitSolverGUI.Netlist base = netlist(ladder(40, false) + "ELEMENTO I 0 20 0.002\n");
+        try (CircuitSolverGUI.SolverService service = new CircuitSolverGUI.SolverService(0, 2, 256, 32)) {
+            service.start();
+            java.net.URI uri = java.net.URI.create("http://localhost:" + service.getPort() + "/resolver");
+            java.net.http.HttpClient client = java.net.http.HttpClient.newHttpClient();
+            ArrayList<CircuitSolverGUI.Netlist> sent = new ArrayList<>();
+            ArrayList<java.util.concurrent.CompletableFuture<java.net.http.HttpResponse<String>>> responses = new ArrayList<>();
+            for (int i=0; i<60; i++) {
+                CircuitSolverGUI.Netlist net = netlist(CircuitSolverGUI.netlistText(base, 1 + 0.01 * (i / 2), i % 2 == 0));
+                sent.add(net);
+                java.net.http.HttpRequest request = java.net.http.HttpRequest.newBuilder(uri)
+                    .POST(java.net.http.HttpRequest.BodyPublishers.ofString(jsonBody(net))).build();
+                responses.add(client.sendAsync(request, java.net.http.HttpResponse.BodyHandlers.ofString()));
+            }
+            for (int i=0; i<sent.size(); i++) {
+                java.net.http.HttpResponse<String> response = responses.get(i).get();
+                check(response.statusCode() == 200, "solicitud " + i + ": " + response.statusCode() + " " + response.body());
+                Map<?, ?> voltages = (Map<?, ?>) ((Map<?, ?>) new CircuitSolverGUI.JsonReader(response.body()).readValue()).get("voltajes");
+                CircuitSolverGUI.CircuitSolver expected = solve(sent.get(i));
+                for (CircuitSolverGUI.Node nd : sent.get(i).nodes) {
+                    assertClose(expected.getNodeVoltages().get(nd.id), (Double) voltages.get(String.valueOf(nd.id)), 1e-9,
+                        "solicitud " + i + ", nodo " + nd.id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Un lote (arreglo JSON) vuelve como una línea por circuito con su índice; el circuito sin tierra
+     * recibe su error sin afectar a los demás.
+     */
+    public static void testServiceBatchStreamsOneLinePerCircuit() throws Exception {
+        CircuitSolverGUI.Netlist base = netlist(ladder(40, false) + "ELEMENTO I 0 20 0.002\n");
+        ArrayList<CircuitSolverGUI.Netlist> sent = new ArrayList<>();
+        StringBuilder body = new StringBuilder("[");
+        for (int i=0; i<12; i++) {
+            CircuitSolverGUI.Netlist net = netlist(CircuitSolverGUI.netlistText(base, 1 + 0.01 * i, i % 3 != 0));
+            sent.add(net);
+            body.append(i > 0 ? "," : "").append(jsonBody(net));
+        }
+        body.append(",{\"nodos\":[{\"id\":1,\"x\":0,\"y\":0}],\"elementos\":[]}]");
+        try (CircuitSolverGUI.SolverService service = new CircuitSolverGUI.SolverService(0, 2, 256, 4)) {
+            service.start();
+            java.net.URI uri = java.net.URI.create("http://localhost:" + service.getPort() + "/resolver");
+            java.net.http.HttpResponse<String> response = java.net.http.HttpClient.newHttpClient().send(
+                java.net.http.HttpRequest.newBuilder(uri).POST(java.net.http.HttpRequest.BodyPublishers.ofString(body.toString())).build(),
+                java.net.http.HttpResponse.BodyHandlers.ofString());
+            check(response.statusCode() == 200, "lote: " + response.statusCode() + " " + response.body());
+            check(response.headers().firstValue("Content-Type").orElse("").startsWith("application/x-ndjson"),
+                "tipo de contenido del lote");
+            String[] lines = response.body().split("\n");
+            check(lines.length == sent.size() + 1, "líneas: " + lines.length);
+            boolean[] seen = new boolean[sent.size() + 1];
+            for (String line : lines) {
+                Map<?, ?> result = (Map<?, ?>) new CircuitSolverGUI.JsonReader(line).readValue();
+                int index = (int) Math.round((Double) result.get("indice"));
+                check(!seen[index], "índice repetido " + index);
+                seen[index] = true;
+                if (index == sent.size()) {
+                    check(String.valueOf(result.get("error")).contains("tierra"), line);
+                    continue;
+                }
+                Map<?, ?> voltages = (Map<?, ?>) result.get("voltajes");
+                CircuitSolverGUI.CircuitSolver expected = solve(sent.get(index));
+                for (CircuitSolverGUI.Node nd : sent.get(index).nodes) {
+                    assertClose(expected.getNodeVoltages().get(nd.id), (Double) voltages.get(String.valueOf(nd.id)), 1e-9,
+                        "circuito " + index + ", nodo " + nd.id);
+                }
+            }
+        }
+    }
+
+    public static void testServeRejectsInvalidArguments() throws Exception {
+        String out = runMain(2, "--serve", "--prot", "9000");
+        check(out.contains("Opción desconocida: --prot") && out.contains("Uso:"), out);
+        out = runMain(2, "--serve", "--workers", "2", "--port");
+        check(out.contains("Falta el valor de --port"), out);
+        out = runMain(2, "--serve", "--port", "70000");
+        check(out.contains("--port debe estar entre 0 y 65535"), out);
+        out = runMain(2, "--serve", "--queue", "0");
+        check(out.contains("al menos 1"), out);
+    }
+
+    static String jsonBody(CircuitSolverGUI.Netlist net) {
+        StringBuilder sb = new StringBuilder("{\"nodos\":[");
+        for (int i=0; i<net.nodes.size(); i++) {
+            CircuitSolverGUI.Node nd = net.nodes.get(i);
+            sb.append(i > 0 ? "," : "").append("{\"id\":").append(nd.id).append(",\"x\":0,\"y\":0}");
+        }
+        sb.append("],\"elementos\":[");
+        for (int i=0; i<net.elements.size(); i++) {
+            CircuitSolverGUI.CircuitElement ce = net.elements.get(i);
+            sb.append(i > 0 ? "," : "").append("{\"tipo\":\"").append(CircuitSolverGUI.typeCode(ce))
+              .append("\",\"nodo1\":").append(ce.node1.id).append(",\"nodo2\":").append(ce.node2.id)
+              .append(",\"valor\":").append(ce.value).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    static HashMap<Integer, Double> voltagesByNode(CircuitSolverGUI.Netlist net, CircuitSolverGUI.CircuitSolver solver) {
+        HashMap<Integer, Double> voltages = new HashMap<>();
+        for (CircuitSolverGUI.Node nd : net.nodes) voltages.put(nd.id, solver.getNodeVoltages().get(nd.id));
+        return voltages;
+    }
+}